@@ -0,0 +1,518 @@
+/*
+ * In-memory store of the parsed configuration management data.
+ *
+ * @see http://github.com/bodastage/boda-huaweicmxmlparser
+ */
+package com.bodastage.boda_huaweicmxmlparser;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parameter values of every managed object, indexed by NE.
+ *
+ * The store is kept in a single buffer laid out as its snapshot file so
+ * that a snapshot is loaded by memory mapping it. All strings are held once
+ * in a sorted dictionary and referred to by their int code, code 0 being
+ * the empty string used for missing values. Each managed object is a table
+ * stored column by column with its rows grouped by NE:
+ *
+ * <pre>
+ * header     magic, string count, managed object count
+ * dictionary string offsets, UTF-8 bytes
+ * directory  name code and table offset of each managed object
+ * tables     column, row and NE counts
+ *            column name codes
+ *            NE codes in ascending order
+ *            start of each NE's rows in the row list
+ *            row list, rows ordered by NE
+ *            value codes, column after column
+ * </pre>
+ *
+ * Lookups find the neid's code by binary search of the dictionary and its
+ * rows by binary search of the table's NE codes.
+ *
+ * @since 1.1.0
+ * @author Bodastage<info@bodastage.com>
+ */
+public final class CMStore {
+
+    private static final long MAGIC = 0x434D53544F524531L; //CMSTORE1
+
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * Location of a managed object's table.
+     */
+    private static final class Table {
+        final int columnCount;
+        final int rowCount;
+        final int neCount;
+        final int columnsOffset;
+        final int neCodesOffset;
+        final int neStartsOffset;
+        final int rowsOffset;
+        final int valuesOffset;
+
+        Table(ByteBuffer buffer, int offset){
+            columnCount = buffer.getInt(offset);
+            rowCount = buffer.getInt(offset + 4);
+            neCount = buffer.getInt(offset + 8);
+            columnsOffset = offset + 12;
+            neCodesOffset = columnsOffset + 4 * columnCount;
+            neStartsOffset = neCodesOffset + 4 * neCount;
+            rowsOffset = neStartsOffset + 4 * (neCount + 1);
+            valuesOffset = rowsOffset + 4 * rowCount;
+        }
+    }
+
+    private final ByteBuffer buffer;
+
+    private final int stringCount;
+
+    private final int blobOffset;
+
+    private final Map<String, Table> tables = new LinkedHashMap<String, Table>();
+
+    private CMStore(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if(buffer.limit() < HEADER_SIZE || buffer.getLong(0) != MAGIC){
+            throw new IOException("Not a CM store snapshot");
+        }
+
+        stringCount = buffer.getInt(8);
+        int moCount = buffer.getInt(12);
+        blobOffset = HEADER_SIZE + 4 * (stringCount + 1);
+
+        int directoryOffset = align(blobOffset + buffer.getInt(HEADER_SIZE + 4 * stringCount));
+        for(int i = 0; i < moCount; i++){
+            int p = directoryOffset + 8 * i;
+            tables.put(string(buffer.getInt(p)), new Table(buffer, buffer.getInt(p + 4)));
+        }
+    }
+
+    /**
+     * Memory map a snapshot written by save.
+     *
+     * @param snapshot Snapshot file
+     * @return The store
+     * @throws IOException
+     */
+    public static CMStore load(File snapshot) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(snapshot, "r");
+        try{
+            FileChannel channel = file.getChannel();
+            if(channel.size() > Integer.MAX_VALUE){
+                throw new IOException("CM store snapshot is larger than 2GB");
+            }
+            return new CMStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }finally{
+            file.close();
+        }
+    }
+
+    /**
+     * Write the store to a snapshot file.
+     *
+     * @param snapshot Snapshot file
+     * @throws IOException
+     */
+    public void save(File snapshot) throws IOException {
+        FileOutputStream out = new FileOutputStream(snapshot);
+        try{
+            ByteBuffer b = buffer.duplicate();
+            b.position(0);
+            FileChannel channel = out.getChannel();
+            while(b.hasRemaining()){
+                channel.write(b);
+            }
+        }finally{
+            out.close();
+        }
+    }
+
+    /**
+     * @return Names of the managed objects
+     */
+    public List<String> getMOs(){
+        return new ArrayList<String>(tables.keySet());
+    }
+
+    /**
+     * @param mo Managed object
+     * @return Parameter names of the managed object. Empty if it is unknown
+     */
+    public List<String> getColumns(String mo){
+        Table table = tables.get(mo);
+        if(table == null){
+            return Collections.<String>emptyList();
+        }
+
+        List<String> columns = new ArrayList<String>(table.columnCount);
+        for(int c = 0; c < table.columnCount; c++){
+            columns.add(string(buffer.getInt(table.columnsOffset + 4 * c)));
+        }
+        return columns;
+    }
+
+    /**
+     * @param mo Managed object
+     * @return Number of instances of the managed object
+     */
+    public int getRowCount(String mo){
+        Table table = tables.get(mo);
+        return table == null ? 0 : table.rowCount;
+    }
+
+    /**
+     * @param mo Managed object
+     * @return neids of the NEs that have instances of the managed object
+     */
+    public List<String> getNEIds(String mo){
+        Table table = tables.get(mo);
+        if(table == null){
+            return Collections.<String>emptyList();
+        }
+
+        List<String> neIds = new ArrayList<String>(table.neCount);
+        for(int i = 0; i < table.neCount; i++){
+            neIds.add(string(buffer.getInt(table.neCodesOffset + 4 * i)));
+        }
+        return neIds;
+    }
+
+    /**
+     * All the parameters of the instances of a managed object in an NE.
+     *
+     * @param neId NE id
+     * @param mo Managed object
+     * @return One map of parameter values per instance, in parse order
+     */
+    public List<Map<String, String>> getRows(String neId, String mo){
+        Table table = tables.get(mo);
+        int[] rows = table == null ? new int[0] : rows(table, neId);
+        List<String> columns = getColumns(mo);
+
+        List<Map<String, String>> result = new ArrayList<Map<String, String>>(rows.length);
+        for(int row : rows){
+            Map<String, String> values = new LinkedHashMap<String, String>();
+            for(int c = 0; c < columns.size(); c++){
+                values.put(columns.get(c), value(table, c, row));
+            }
+            result.add(values);
+        }
+        return result;
+    }
+
+    /**
+     * A parameter of the instances of a managed object in an NE.
+     *
+     * @param neId NE id
+     * @param mo Managed object
+     * @param parameter Parameter name
+     * @return The value of each instance, in parse order. Empty if the NE,
+     *         managed object or parameter is unknown
+     */
+    public List<String> getValues(String neId, String mo, String parameter){
+        Table table = tables.get(mo);
+        if(table == null){
+            return Collections.<String>emptyList();
+        }
+
+        int column = getColumns(mo).indexOf(parameter);
+        if(column < 0){
+            return Collections.<String>emptyList();
+        }
+
+        int[] rows = rows(table, neId);
+        List<String> values = new ArrayList<String>(rows.length);
+        for(int row : rows){
+            values.add(value(table, column, row));
+        }
+        return values;
+    }
+
+    /**
+     * Rows of an NE in a table.
+     */
+    private int[] rows(Table table, String neId){
+        int code = code(neId);
+        if(code < 0){
+            return new int[0];
+        }
+
+        int low = 0;
+        int high = table.neCount - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            int midCode = buffer.getInt(table.neCodesOffset + 4 * mid);
+            if(midCode < code){
+                low = mid + 1;
+            }else if(midCode > code){
+                high = mid - 1;
+            }else{
+                int start = buffer.getInt(table.neStartsOffset + 4 * mid);
+                int end = buffer.getInt(table.neStartsOffset + 4 * (mid + 1));
+                int[] rows = new int[end - start];
+                for(int i = 0; i < rows.length; i++){
+                    rows[i] = buffer.getInt(table.rowsOffset + 4 * (start + i));
+                }
+                return rows;
+            }
+        }
+        return new int[0];
+    }
+
+    private String value(Table table, int column, int row){
+        return string(buffer.getInt(table.valuesOffset + 4 * (column * table.rowCount + row)));
+    }
+
+    /**
+     * Code of a string by binary search of the dictionary or -1.
+     */
+    private int code(String s){
+        int low = 0;
+        int high = stringCount - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            int cmp = string(mid).compareTo(s);
+            if(cmp < 0){
+                low = mid + 1;
+            }else if(cmp > 0){
+                high = mid - 1;
+            }else{
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private String string(int code){
+        int start = buffer.getInt(HEADER_SIZE + 4 * code);
+        int end = buffer.getInt(HEADER_SIZE + 4 * (code + 1));
+        byte[] bytes = new byte[end - start];
+        for(int i = 0; i < bytes.length; i++){
+            bytes[i] = buffer.get(blobOffset + start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int align(int offset){
+        return (offset + 3) & ~3;
+    }
+
+    /**
+     * Growable int array.
+     */
+    private static final class IntArray {
+        int[] values = new int[16];
+        int size = 0;
+
+        void add(int value){
+            if(size == values.length){
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Rows of a managed object being added.
+     */
+    private static final class TableBuilder {
+        final Map<String, Integer> columnIndexes = new HashMap<String, Integer>();
+        final List<Integer> columnCodes = new ArrayList<Integer>();
+        final List<IntArray> columns = new ArrayList<IntArray>();
+        final IntArray neCodes = new IntArray();
+    }
+
+    /**
+     * Collects rows during parsing and builds the store.
+     *
+     * @since 1.1.0
+     */
+    static final class Builder {
+        private final Map<String, Integer> codes = new HashMap<String, Integer>();
+
+        private final List<String> strings = new ArrayList<String>();
+
+        private final Map<String, TableBuilder> tables = new LinkedHashMap<String, TableBuilder>();
+
+        Builder(){
+            code("");
+        }
+
+        private int code(String s){
+            Integer code = codes.get(s);
+            if(code == null){
+                code = strings.size();
+                codes.put(s, code);
+                strings.add(s);
+            }
+            return code;
+        }
+
+        /**
+         * Add an instance of a managed object. Safe to call from many
+         * threads.
+         *
+         * @param mo Managed object
+         * @param neId NE id
+         * @param values Parameter values by name
+         */
+        synchronized void addRow(String mo, String neId, Map<String, String> values){
+            TableBuilder table = tables.get(mo);
+            if(table == null){
+                table = new TableBuilder();
+                tables.put(mo, table);
+                code(mo);
+            }
+
+            int row = table.neCodes.size;
+            for(Map.Entry<String, String> me : values.entrySet()){
+                Integer c = table.columnIndexes.get(me.getKey());
+                if(c == null){
+                    //Earlier rows do not have the parameter
+                    c = table.columns.size();
+                    table.columnIndexes.put(me.getKey(), c);
+                    table.columnCodes.add(code(me.getKey()));
+                    IntArray column = new IntArray();
+                    for(int r = 0; r < row; r++) column.add(0);
+                    table.columns.add(column);
+                }
+            }
+
+            for(int c = 0; c < table.columns.size(); c++){
+                String value = values.get(strings.get(table.columnCodes.get(c)));
+                table.columns.get(c).add(value == null ? 0 : code(value));
+            }
+            table.neCodes.add(code(neId));
+        }
+
+        /**
+         * Build the store in a heap buffer.
+         *
+         * @return The store
+         * @throws IOException
+         */
+        synchronized CMStore build() throws IOException {
+            //Sort the dictionary and renumber the codes
+            Integer[] order = new Integer[strings.size()];
+            for(int i = 0; i < order.length; i++) order[i] = i;
+            Arrays.sort(order, new Comparator<Integer>(){
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return strings.get(a).compareTo(strings.get(b));
+                }
+            });
+            int[] newCodes = new int[order.length];
+            byte[][] bytes = new byte[order.length][];
+            long blobSize = 0;
+            for(int i = 0; i < order.length; i++){
+                newCodes[order[i]] = i;
+                bytes[i] = strings.get(order[i]).getBytes(StandardCharsets.UTF_8);
+                blobSize += bytes[i].length;
+            }
+
+            //Upper bound, taking every row to be of a different NE
+            long size = HEADER_SIZE + 4L * (order.length + 1) + blobSize + 3
+                    + 8L * tables.size();
+            for(TableBuilder t : tables.values()){
+                long rows = t.neCodes.size;
+                size += 16 + 4L * t.columns.size() + 12L * rows
+                        + 4L * t.columns.size() * rows;
+            }
+            if(size > Integer.MAX_VALUE){
+                throw new IOException("The CM store is larger than 2GB");
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            buffer.putLong(MAGIC).putInt(order.length).putInt(tables.size());
+            int offset = 0;
+            for(byte[] b : bytes){
+                buffer.putInt(offset);
+                offset += b.length;
+            }
+            buffer.putInt(offset);
+            for(byte[] b : bytes){
+                buffer.put(b);
+            }
+            buffer.position(align(buffer.position()));
+
+            int directoryOffset = buffer.position();
+            int tableOffset = directoryOffset + 8 * tables.size();
+            int i = 0;
+            for(Map.Entry<String, TableBuilder> me : tables.entrySet()){
+                buffer.position(directoryOffset + 8 * i++);
+                buffer.putInt(newCodes[code(me.getKey())]).putInt(tableOffset);
+                buffer.position(tableOffset);
+                writeTable(buffer, me.getValue(), newCodes);
+                tableOffset = buffer.position();
+            }
+
+            buffer.limit(tableOffset);
+            buffer.position(0);
+            return new CMStore(buffer);
+        }
+
+        private static void writeTable(ByteBuffer buffer, TableBuilder t, int[] newCodes){
+            int rowCount = t.neCodes.size;
+
+            //Order the rows by NE code, keeping the parse order within an NE
+            Integer[] rows = new Integer[rowCount];
+            for(int r = 0; r < rowCount; r++) rows[r] = r;
+            final int[] neCodes = new int[rowCount];
+            for(int r = 0; r < rowCount; r++) neCodes[r] = newCodes[t.neCodes.values[r]];
+            Arrays.sort(rows, new Comparator<Integer>(){
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return neCodes[a] != neCodes[b] ? Integer.compare(neCodes[a], neCodes[b])
+                            : Integer.compare(a, b);
+                }
+            });
+
+            IntArray distinct = new IntArray();
+            IntArray starts = new IntArray();
+            for(int r = 0; r < rowCount; r++){
+                int code = neCodes[rows[r]];
+                if(distinct.size == 0 || distinct.values[distinct.size - 1] != code){
+                    distinct.add(code);
+                    starts.add(r);
+                }
+            }
+            starts.add(rowCount);
+
+            buffer.putInt(t.columns.size()).putInt(rowCount).putInt(distinct.size);
+            for(int code : t.columnCodes){
+                buffer.putInt(newCodes[code]);
+            }
+            for(int i = 0; i < distinct.size; i++){
+                buffer.putInt(distinct.values[i]);
+            }
+            for(int i = 0; i < starts.size; i++){
+                buffer.putInt(starts.values[i]);
+            }
+            for(int r = 0; r < rowCount; r++){
+                buffer.putInt(rows[r]);
+            }
+            for(IntArray column : t.columns){
+                for(int r = 0; r < rowCount; r++){
+                    buffer.putInt(newCodes[column.values[r]]);
+                }
+            }
+        }
+    }
+}
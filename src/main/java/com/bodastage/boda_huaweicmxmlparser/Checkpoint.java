@@ -0,0 +1,387 @@
+/*
+ * Per-file checkpoints of a resumable run.
+ *
+ * @see http://github.com/bodastage/boda-huaweicmxmlparser
+ */
+package com.bodastage.boda_huaweicmxmlparser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+/**
+ * Keeps the progress of a run in &lt;output directory&gt;/.checkpoint so that
+ * a run that is stopped can be resumed from the first unfinished file.
+ *
+ * The layout is:
+ * <pre>
+ * params/&lt;file&gt;     columns found in each file
+ * schema             columns of all the files, written when the parameter
+ *                    extraction pass is done, with the names and versions
+ *                    of the files
+ * segments/&lt;file&gt;/  csv output of each file
+ * </pre>
+ *
+ * Each checkpoint is written under a temporary name and renamed when the
+ * file is done so a stopped run never leaves a partial checkpoint. The
+ * checkpoints record the size and modification time of their file and are
+ * ignored if the file has changed. The schema is ignored if any file was
+ * added, removed or changed, and the segments are discarded if the schema
+ * that replaces it differs. Once every file is done the segments are
+ * assembled into the output directory in file order and the checkpoint
+ * directory is deleted.
+ *
+ * @since 1.1.0
+ * @author Bodastage<info@bodastage.com>
+ */
+final class Checkpoint {
+
+    static final String DIRECTORY = ".checkpoint";
+
+    /**
+     * Records the version of the file a segment was parsed from.
+     */
+    private static final String SOURCE_FILE = ".source";
+
+    private static final String MANIFEST_FILE = "manifest.csv";
+
+    /**
+     * Columns and footer of a file, or of all the files for the schema.
+     *
+     * @since 1.1.0
+     */
+    static final class Columns {
+        String dateTime;
+
+        String footer;
+
+        Map<String, Stack> columns = new LinkedHashMap<String, Stack>();
+    }
+
+    private final Path directory;
+
+    private final Path paramsDirectory;
+
+    private final Path segmentsDirectory;
+
+    /**
+     * @param outputDirectory Output directory of the run
+     * @throws IOException
+     */
+    Checkpoint(String outputDirectory) throws IOException {
+        this.directory = Paths.get(outputDirectory, DIRECTORY);
+        this.paramsDirectory = directory.resolve("params");
+        this.segmentsDirectory = directory.resolve("segments");
+        Files.createDirectories(paramsDirectory);
+        Files.createDirectories(segmentsDirectory);
+    }
+
+    /**
+     * Size and modification time of a file.
+     */
+    private static String version(File file){
+        return file.length() + "," + file.lastModified();
+    }
+
+    boolean hasColumns(File file) throws IOException {
+        Path p = paramsDirectory.resolve(file.getName());
+        return Files.isRegularFile(p) && version(file).equals(firstLine(p));
+    }
+
+    Columns loadColumns(File file) throws IOException {
+        return readColumns(paramsDirectory.resolve(file.getName()));
+    }
+
+    void saveColumns(File file, String dateTime, String footer,
+            Map<String, Stack> columns) throws IOException {
+        writeColumns(paramsDirectory.resolve(file.getName()), version(file),
+                dateTime, footer, columns);
+    }
+
+    /**
+     * Names and versions of the files of a run.
+     */
+    private static String versions(List<File> files){
+        StringBuilder versions = new StringBuilder();
+        for(File file : files){
+            if(!file.isFile()){
+                continue;
+            }
+            if(versions.length() > 0) versions.append('/');
+            versions.append(file.getName()).append(',').append(version(file));
+        }
+        return versions.toString();
+    }
+
+    /**
+     * Whether the schema was saved for the same files, unchanged.
+     *
+     * @param files Files of the run
+     */
+    boolean hasSchema(List<File> files) throws IOException {
+        Path p = directory.resolve("schema");
+        return Files.isRegularFile(p) && versions(files).equals(firstLine(p));
+    }
+
+    Columns loadSchema() throws IOException {
+        return readColumns(directory.resolve("schema"));
+    }
+
+    /**
+     * Save the schema of the files. Segments written with a different
+     * schema by an earlier run are deleted so that their files are parsed
+     * again.
+     *
+     * @param files Files of the run
+     * @param dateTime Date time of the last file
+     * @param columns Columns of all the files
+     * @throws IOException
+     */
+    void saveSchema(List<File> files, String dateTime, Map<String, Stack> columns)
+            throws IOException {
+        Path p = directory.resolve("schema");
+        if(Files.isRegularFile(p)){
+            Columns old = readColumns(p);
+            boolean sameDateTime = old.dateTime == null ? dateTime == null || dateTime.isEmpty()
+                    : old.dateTime.equals(dateTime);
+            if(!sameDateTime || !old.columns.equals(columns)){
+                FileUtils.deleteRecursively(segmentsDirectory);
+                Files.createDirectories(segmentsDirectory);
+            }
+        }
+        writeColumns(p, versions(files), dateTime, null, columns);
+    }
+
+    /**
+     * Whether the file's output has been committed.
+     */
+    boolean isCommitted(File file) throws IOException {
+        Path source = segmentsDirectory.resolve(file.getName()).resolve(SOURCE_FILE);
+        return Files.isRegularFile(source) && version(file).equals(firstLine(source));
+    }
+
+    /**
+     * Create an empty temporary directory for the file's output.
+     *
+     * @return The directory
+     */
+    String beginSegment(File file) throws IOException {
+        Path temp = segmentsDirectory.resolve(file.getName() + ".tmp");
+        FileUtils.deleteRecursively(temp);
+        FileUtils.deleteRecursively(segmentsDirectory.resolve(file.getName()));
+        Files.createDirectories(temp);
+        return temp.toString();
+    }
+
+    /**
+     * Atomically commit the file's output once all its writers are closed.
+     */
+    void commitSegment(File file) throws IOException {
+        Path temp = segmentsDirectory.resolve(file.getName() + ".tmp");
+        PrintWriter pw = new PrintWriter(temp.resolve(SOURCE_FILE).toFile());
+        pw.println(version(file));
+        pw.close();
+        Files.move(temp, segmentsDirectory.resolve(file.getName()),
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    void abortSegment(File file){
+        try{
+            FileUtils.deleteRecursively(segmentsDirectory.resolve(file.getName() + ".tmp"));
+        }catch(IOException e){
+        }
+    }
+
+    /**
+     * Write the committed segments into the output directory in file order.
+     *
+     * Without sharding the csv files of each segment are appended to the
+     * output files of the same name, keeping the header of the first. With
+     * sharding the shards of each segment are copied and renumbered.
+     *
+     * @param files Files of the run
+     * @param outputDirectory Output directory
+     * @param parser Parser whose shard manifest lists the copied shards
+     * @throws IOException
+     */
+    void assemble(List<File> files, String outputDirectory, HuaweiCMXMLParser parser)
+            throws IOException {
+        Path out = Paths.get(outputDirectory);
+        Set<Path> started = new HashSet<Path>();
+        Map<String, Integer> shardCounts = new HashMap<String, Integer>();
+
+        for(File file : files){
+            Path segment = segmentsDirectory.resolve(file.getName());
+            if(!isCommitted(file)){
+                //The file could not be parsed
+                continue;
+            }
+
+            Path manifest = segment.resolve(MANIFEST_FILE);
+            if(Files.isRegularFile(manifest)){
+                copyShards(segment, manifest, out, shardCounts, parser);
+                continue;
+            }
+
+            for(Path csv : listCsvFiles(segment)){
+                Path relative = segment.relativize(csv);
+                Path target = out.resolve(relative.toString());
+                if(started.add(relative)){
+                    Files.createDirectories(target.getParent());
+                    Files.copy(csv, target, StandardCopyOption.REPLACE_EXISTING);
+                }else{
+                    appendRows(csv, target);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the checkpoint directory after a completed run.
+     */
+    void delete() throws IOException {
+        FileUtils.deleteRecursively(directory);
+    }
+
+    private void copyShards(Path segment, Path manifest, Path out,
+            Map<String, Integer> shardCounts, HuaweiCMXMLParser parser) throws IOException {
+        List<String> lines = Files.readAllLines(manifest);
+        for(String line : lines.subList(1, lines.size())){
+            //mo,shard,file,rows,bytes. The mo may contain commas.
+            String[] tail = line.substring(nthLastComma(line, 4) + 1).split(",");
+            String mo = line.substring(0, nthLastComma(line, 4));
+            if(mo.startsWith("\"")){
+                mo = mo.substring(1, mo.length() - 1).replace("\"\"", "\"");
+            }
+
+            Integer count = shardCounts.get(mo);
+            int number = count == null ? 1 : count + 1;
+            shardCounts.put(mo, number);
+
+            String fileName = MOCsvWriter.shardFileName(mo, number);
+            Path target = out.resolve(fileName);
+            Files.createDirectories(target.getParent());
+            Files.copy(segment.resolve(tail[1]), target, StandardCopyOption.REPLACE_EXISTING);
+            parser.addToShardManifest(mo, number, fileName,
+                    Long.parseLong(tail[2]), Long.parseLong(tail[3]));
+        }
+    }
+
+    private static int nthLastComma(String s, int n){
+        int index = s.length();
+        for(int i = 0; i < n; i++){
+            index = s.lastIndexOf(',', index - 1);
+        }
+        return index;
+    }
+
+    /**
+     * Append the rows of a csv file, without its header, to another.
+     */
+    private static void appendRows(Path csv, Path target) throws IOException {
+        FileInputStream in = new FileInputStream(csv.toFile());
+        FileOutputStream out = new FileOutputStream(target.toFile(), true);
+        try{
+            long headerLength = 0;
+            for(int b; (b = in.read()) != -1; ){
+                headerLength++;
+                if(b == '\n') break;
+            }
+
+            FileChannel source = in.getChannel();
+            long size = source.size();
+            for(long position = headerLength; position < size; ){
+                position += source.transferTo(position, size - position, out.getChannel());
+            }
+        }finally{
+            in.close();
+            out.close();
+        }
+    }
+
+    private static List<Path> listCsvFiles(Path directory) throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+        try{
+            for(Path p : stream){
+                if(Files.isDirectory(p)){
+                    files.addAll(listCsvFiles(p));
+                }else if(p.getFileName().toString().endsWith(".csv")){
+                    files.add(p);
+                }
+            }
+        }finally{
+            stream.close();
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    private static String firstLine(Path p) throws IOException {
+        BufferedReader br = Files.newBufferedReader(p);
+        try{
+            String line = br.readLine();
+            return line == null ? "" : line;
+        }finally{
+            br.close();
+        }
+    }
+
+    /**
+     * Columns are stored in the parameter file format, MO:param1,param2,...,
+     * after the file version, date time and footer lines.
+     */
+    private static void writeColumns(Path p, String version, String dateTime,
+            String footer, Map<String, Stack> columns) throws IOException {
+        Path temp = p.resolveSibling(p.getFileName() + ".tmp");
+        PrintWriter pw = new PrintWriter(Files.newBufferedWriter(temp));
+        pw.println(version);
+        pw.println(dateTime == null ? "" : dateTime);
+        pw.println(footer == null ? "" : footer);
+        for(Map.Entry<String, Stack> me : columns.entrySet()){
+            StringBuilder line = new StringBuilder(me.getKey()).append(':');
+            for(int i = 0; i < me.getValue().size(); i++){
+                if(i > 0) line.append(',');
+                line.append(me.getValue().get(i));
+            }
+            pw.println(line);
+        }
+        pw.close();
+        Files.move(temp, p, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Columns readColumns(Path p) throws IOException {
+        List<String> lines = Files.readAllLines(p);
+        Columns c = new Columns();
+        c.dateTime = lines.get(1).isEmpty() ? null : lines.get(1);
+        c.footer = lines.get(2).isEmpty() ? null : lines.get(2);
+        for(String line : lines.subList(3, lines.size())){
+            int colon = line.indexOf(':');
+            Stack stack = new Stack();
+            for(String column : line.substring(colon + 1).split(",")){
+                if(!column.isEmpty()) stack.push(column);
+            }
+            c.columns.put(line.substring(0, colon), stack);
+        }
+        return c;
+    }
+}
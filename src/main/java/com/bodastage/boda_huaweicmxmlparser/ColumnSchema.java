@@ -0,0 +1,126 @@
+/*
+ * Columns of each managed object discovered by concurrent workers.
+ *
+ * @see http://github.com/bodastage/boda-huaweicmxmlparser
+ */
+package com.bodastage.boda_huaweicmxmlparser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Merges the columns found by parallel workers without a global lock.
+ *
+ * Every managed object and column is ranked by where it was first seen: the
+ * index of the file, the index of the chunk within the file and its position
+ * in the chunk's columns. Workers merge their chunks in any order keeping the
+ * lowest rank, and sorting by rank gives the same columns in the same order
+ * as parsing the files and chunks one after the other. The ranks are kept in
+ * ConcurrentHashMaps, which only lock the bin being updated.
+ *
+ * @since 1.1.0
+ * @author Bodastage<info@bodastage.com>
+ */
+final class ColumnSchema {
+
+    /**
+     * Bits of the rank used for the position within a chunk.
+     *
+     * @since 1.1.0
+     */
+    private static final int POSITION_BITS = 32;
+
+    /**
+     * Bits of the rank used for the chunk within a file.
+     *
+     * @since 1.1.0
+     */
+    private static final int CHUNK_BITS = 12;
+
+    /**
+     * Largest number of chunks a file can be split into.
+     *
+     * @since 1.1.0
+     */
+    static final int MAX_CHUNKS = 1 << CHUNK_BITS;
+
+    private static final BiFunction<Long, Long, Long> MIN
+            = new BiFunction<Long, Long, Long>(){
+        @Override
+        public Long apply(Long a, Long b) {
+            return Math.min(a, b);
+        }
+    };
+
+    private static final Function<String, ConcurrentHashMap<String, Long>> NEW_COLUMNS
+            = new Function<String, ConcurrentHashMap<String, Long>>(){
+        @Override
+        public ConcurrentHashMap<String, Long> apply(String mo) {
+            return new ConcurrentHashMap<String, Long>();
+        }
+    };
+
+    private final ConcurrentHashMap<String, Long> moRanks
+            = new ConcurrentHashMap<String, Long>();
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Long>> columnRanks
+            = new ConcurrentHashMap<String, ConcurrentHashMap<String, Long>>();
+
+    /**
+     * Merge the columns found in a chunk. Safe to call from many threads.
+     *
+     * @param fileIndex Index of the file in the files being parsed
+     * @param chunkIndex Index of the chunk in the file, less than MAX_CHUNKS
+     * @param columns Columns of each managed object in the order found
+     */
+    void add(int fileIndex, int chunkIndex, Map<String, Stack> columns){
+        long base = ((long) fileIndex << (CHUNK_BITS + POSITION_BITS))
+                | ((long) chunkIndex << POSITION_BITS);
+
+        long moPosition = 0;
+        for(Map.Entry<String, Stack> me : columns.entrySet()){
+            moRanks.merge(me.getKey(), base | moPosition++, MIN);
+
+            ConcurrentHashMap<String, Long> ranks
+                    = columnRanks.computeIfAbsent(me.getKey(), NEW_COLUMNS);
+            long position = 0;
+            for(Object column : me.getValue()){
+                ranks.merge((String) column, base | position++, MIN);
+            }
+        }
+    }
+
+    /**
+     * The merged columns ordered by rank. Call once all the workers are done.
+     *
+     * @return Columns of each managed object
+     */
+    Map<String, Stack> toColumns(){
+        Map<String, Stack> columns = new LinkedHashMap<String, Stack>();
+        for(String mo : sortByRank(moRanks)){
+            Stack stack = new Stack();
+            stack.addAll(sortByRank(columnRanks.get(mo)));
+            columns.put(mo, stack);
+        }
+        return columns;
+    }
+
+    private static List<String> sortByRank(final Map<String, Long> ranks){
+        List<String> keys = new ArrayList<String>(ranks.keySet());
+        Collections.sort(keys, new Comparator<String>(){
+            @Override
+            public int compare(String a, String b) {
+                return ranks.get(a).compareTo(ranks.get(b));
+            }
+        });
+        return keys;
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Reads files ahead on I/O threads and parses them on a CPU pool.
+ *
+ * @see http://github.com/bodastage/boda-huaweicmxmlparser
+ */
+package com.bodastage.boda_huaweicmxmlparser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Schedules the files of a directory over two pools.
+ *
+ * Opening and reading files on network mounts is dominated by latency. Each
+ * file is read on its own I/O thread into a small window of segments while a
+ * bounded pool of CPU threads parses the segments already read. With the
+ * "virtual" mode the I/O threads are virtual threads (Java 21 and later),
+ * otherwise a fixed pool of platform threads is used.
+ *
+ * @since 1.1.0
+ * @author Bodastage<info@bodastage.com>
+ */
+class FileScheduler {
+
+    /**
+     * I/O threads are virtual threads.
+     */
+    static final String VIRTUAL = "virtual";
+
+    /**
+     * I/O threads are platform threads.
+     */
+    static final String PLATFORM = "platform";
+
+    /**
+     * Files are read in 1MB segments.
+     *
+     * @since 1.1.0
+     */
+    static final int SEGMENT_SHIFT = 20;
+
+    /**
+     * Number of segments read ahead of the parser.
+     *
+     * @since 1.1.0
+     */
+    static final int READ_AHEAD_SEGMENTS = 8;
+
+    /**
+     * Handles one file on a CPU thread.
+     *
+     * @since 1.1.0
+     */
+    interface FileHandler {
+        /**
+         * @param index Index of the file in the list being processed
+         * @param file The file
+         * @param source The file's contents. null if the file could not be opened
+         */
+        void handle(int index, File file, NBIXMLScanner.Source source) throws Exception;
+    }
+
+    /**
+     * A file being read ahead of its parser.
+     *
+     * @since 1.1.0
+     */
+    static final class PrefetchedFile implements NBIXMLScanner.Source {
+        private final ReadableByteChannel channel;
+
+        private final long length;
+
+        private final ByteBuffer[] segments;
+
+        /**
+         * Number of segments read, one more than the highest segment
+         * requested by the parser and the first segment not yet released.
+         */
+        private int read = 0;
+
+        private int requested = 0;
+
+        private int released = 0;
+
+        private IOException error = null;
+
+        private boolean closed = false;
+
+        /**
+         * Guards the counters above. A lock is used rather than monitors so
+         * that waiting virtual threads do not pin their carrier thread.
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final Condition changed = lock.newCondition();
+
+        PrefetchedFile(ReadableByteChannel channel, long length){
+            this.channel = channel;
+            this.length = length;
+            int segmentSize = 1 << SEGMENT_SHIFT;
+            this.segments = new ByteBuffer[(int)((length + segmentSize - 1) >>> SEGMENT_SHIFT)];
+        }
+
+        @Override
+        public int segmentShift(){
+            return SEGMENT_SHIFT;
+        }
+
+        @Override
+        public long length(){
+            return length;
+        }
+
+        @Override
+        public ByteBuffer segment(int index) throws IOException {
+            lock.lock();
+            try{
+                if(index >= requested){
+                    requested = index + 1;
+                    changed.signalAll();
+                }
+
+                while(index >= read && error == null && !closed){
+                    changed.await();
+                }
+
+                if(index < read && segments[index] != null){
+                    return segments[index];
+                }
+                throw error != null ? error : new IOException("File closed");
+            }catch(InterruptedException e){
+                throw new InterruptedIOException();
+            }finally{
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void release(int index){
+            lock.lock();
+            try{
+                for(; released < index && released < read; released++){
+                    segments[released] = null;
+                }
+            }finally{
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public InputStream newInputStream(){
+            return new NBIXMLScanner.SourceInputStream(this);
+        }
+
+        /**
+         * Read the next segment, waiting while the parser is more than the
+         * read ahead window behind.
+         *
+         * @return true if there are more segments to read
+         */
+        boolean readNext() throws IOException {
+            lock.lock();
+            try{
+                while(!closed && read < segments.length
+                        && read >= requested + READ_AHEAD_SEGMENTS){
+                    changed.await();
+                }
+                if(closed || read == segments.length){
+                    return false;
+                }
+            }catch(InterruptedException e){
+                throw new InterruptedIOException();
+            }finally{
+                lock.unlock();
+            }
+
+            long offset = (long) read << SEGMENT_SHIFT;
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(1 << SEGMENT_SHIFT, length - offset));
+            while(buffer.hasRemaining()){
+                if(channel.read(buffer) < 0){
+                    throw new IOException("File truncated while reading");
+                }
+            }
+            buffer.flip();
+
+            lock.lock();
+            try{
+                if(closed){
+                    return false;
+                }
+                segments[read++] = buffer;
+                changed.signalAll();
+                return read < segments.length;
+            }finally{
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Read the next segment. Errors are passed on to the parser.
+         *
+         * @return true if there are more segments to read
+         */
+        boolean prefetch(){
+            try{
+                if(readNext()){
+                    return true;
+                }
+            }catch(IOException e){
+                lock.lock();
+                try{
+                    error = e;
+                    changed.signalAll();
+                }finally{
+                    lock.unlock();
+                }
+            }
+
+            try{
+                channel.close();
+            }catch(IOException e){
+            }
+            return false;
+        }
+
+        /**
+         * Stop reading and drop the segments.
+         */
+        void close(){
+            lock.lock();
+            try{
+                closed = true;
+                for(int i = 0; i < segments.length; i++){
+                    segments[i] = null;
+                }
+                changed.signalAll();
+            }finally{
+                lock.unlock();
+            }
+        }
+    }
+
+    private static boolean warnedNoVirtualThreads = false;
+
+    private final ExecutorService ioExecutor;
+
+    private final ExecutorService cpuExecutor;
+
+    private final int maxFilesInFlight;
+
+    /**
+     * @param mode VIRTUAL or PLATFORM
+     * @param cpuThreads Number of files parsed at the same time
+     * @param ioThreads Number of files read at the same time
+     */
+    FileScheduler(String mode, int cpuThreads, int ioThreads){
+        ExecutorService virtualExecutor = VIRTUAL.equals(mode) ? newVirtualThreadExecutor() : null;
+        if(VIRTUAL.equals(mode) && virtualExecutor == null && !warnedNoVirtualThreads){
+            System.err.println("WARNING: Virtual threads require Java 21. Using platform threads.");
+            warnedNoVirtualThreads = true;
+        }
+
+        this.ioExecutor = virtualExecutor != null ? virtualExecutor
+                : Executors.newFixedThreadPool(ioThreads);
+        this.cpuExecutor = Executors.newFixedThreadPool(cpuThreads);
+        this.maxFilesInFlight = ioThreads;
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() when running on Java 21 or
+     * later.
+     */
+    private static ExecutorService newVirtualThreadExecutor(){
+        try{
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        }catch(Exception e){
+            return null;
+        }
+    }
+
+    /**
+     * Open a file for reading ahead.
+     */
+    PrefetchedFile open(File file) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        return new PrefetchedFile(channel, channel.size());
+    }
+
+    /**
+     * Read and handle all the files. Returns when every file has been
+     * handled.
+     *
+     * @param files Files to process
+     * @param handler Called on a CPU thread for each file
+     * @throws InterruptedException
+     */
+    void process(List<File> files, final FileHandler handler) throws InterruptedException {
+        final Semaphore inFlight = new Semaphore(maxFilesInFlight);
+        final CountDownLatch done = new CountDownLatch(files.size());
+
+        for(int i = 0; i < files.size(); i++){
+            final int index = i;
+            final File file = files.get(i);
+            inFlight.acquire();
+
+            ioExecutor.execute(new Runnable(){
+                @Override
+                public void run() {
+                    PrefetchedFile prefetched = null;
+                    boolean more = false;
+                    try{
+                        prefetched = open(file);
+                        //Hand over to a CPU thread once data is available
+                        more = prefetched.prefetch();
+                    }catch(IOException e){
+                        //The handler reports the error when it reads the file
+                    }
+
+                    final PrefetchedFile source = prefetched;
+                    cpuExecutor.execute(new Runnable(){
+                        @Override
+                        public void run() {
+                            try{
+                                handler.handle(index, file, source);
+                            }catch(Exception e){
+                                System.out.println(e.getMessage());
+                                System.out.println("Skipping file: " + file.getName() + "\n");
+                            }finally{
+                                if(source != null) source.close();
+                                inFlight.release();
+                                done.countDown();
+                            }
+                        }
+                    });
+
+                    while(more && source.prefetch());
+                }
+            });
+        }
+
+        done.await();
+    }
+
+    /**
+     * Stop the thread pools.
+     */
+    void shutdown(){
+        ioExecutor.shutdown();
+        cpuExecutor.shutdown();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * File system helpers shared by the checkpoints and the watcher.
+ *
+ * @see http://github.com/bodastage/boda-huaweicmxmlparser
+ */
+package com.bodastage.boda_huaweicmxmlparser;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * File system helpers.
+ *
+ * @since 1.1.0
+ * @author Bodastage<info@bodastage.com>
+ */
+final class FileUtils {
+
+    private FileUtils(){
+    }
+
+    /**
+     * Delete a file or a directory with everything under it. Nothing is done
+     * if the path does not exist.
+     *
+     * @since 1.1.0
+     */
+    static void deleteRecursively(Path p) throws IOException {
+        if(!Files.exists(p)){
+            return;
+        }
+
+        if(Files.isDirectory(p)){
+            DirectoryStream<Path> stream = Files.newDirectoryStream(p);
+            try{
+                for(Path child : stream){
+                    deleteRecursively(child);
+                }
+            }finally{
+                stream.close();
+            }
+        }
+        Files.delete(p);
+    }
+}
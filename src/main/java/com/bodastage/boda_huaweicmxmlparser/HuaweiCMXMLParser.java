@@ -6,25 +6,45 @@
 package com.bodastage.boda_huaweicmxmlparser;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.events.Attribute;
-import javax.xml.stream.events.Characters;
 import javax.xml.stream.events.EndElement;
 import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
@@ -149,8 +169,8 @@ public class HuaweiCMXMLParser {
      * 
      * @since 1.0.0
      */
-    private Map<String, PrintWriter> moiPrintWriters 
-            = new LinkedHashMap<String, PrintWriter>();
+    private Map<String, MOCsvWriter> moiPrintWriters 
+            = new LinkedHashMap<String, MOCsvWriter>();
     
 
     /**
@@ -160,6 +180,38 @@ public class HuaweiCMXMLParser {
      */
     private String outputDirectory = "/tmp";
     
+    /**
+     * Data source or output directory name standing for standard input or 
+     * output on the command line.
+     * 
+     * @since 1.1.0
+     */
+    public static final String STANDARD_STREAM = "-";
+    
+    /**
+     * Stream the rows of all the managed objects are written to, tagged 
+     * with their managed object. null to write csv files.
+     * 
+     * @since 1.1.0
+     */
+    private PrintWriter streamWriter = null;
+    
+    /**
+     * Where progress and error messages are printed. Standard error when the 
+     * rows are written to a stream, which may be standard output.
+     * 
+     * @since 1.1.0
+     */
+    private PrintStream messages = System.out;
+    
+    /**
+     * Add columns in the value extraction pass as they are found. Set when 
+     * standard input is parsed in a single pass.
+     * 
+     * @since 1.1.0
+     */
+    private boolean growColumns = false;
+    
     /**
      * Tag data.
      *
@@ -204,7 +256,7 @@ public class HuaweiCMXMLParser {
      * 
      * @since 1.1.0
      */
-    static int parserState = ParserStates.EXTRACTING_PARAMETERS;
+    int parserState = ParserStates.EXTRACTING_PARAMETERS;
 
     /**
      * Extraction date time.
@@ -228,6 +280,277 @@ public class HuaweiCMXMLParser {
      * 
      */
     private String parameterFile = null;
+    
+    /**
+     * Parse files with the memory-mapped byte scanner instead of StAX.
+     * 
+     * @since 1.1.0
+     */
+    private Boolean useByteScanner = false;
+    
+    /**
+     * Files that the byte scanner successfully parsed during the parameter 
+     * extraction pass or verifyScannerSupport. Only these are scanned again 
+     * when extracting values so that a fallback to StAX never happens half 
+     * way through writing rows.
+     * 
+     * @since 1.1.0
+     */
+    private Set<String> scannerVerifiedFiles = ConcurrentHashMap.<String>newKeySet();
+    
+    /**
+     * Date time of the footer found by verifyScannerSupport in the file 
+     * being parsed, which is written to its NE index.
+     */
+    private String verifiedDateTime = null;
+    
+    /**
+     * Maximum size in bytes of each csv shard. 0 means the output is not 
+     * split by size.
+     * 
+     * @since 1.1.0
+     */
+    private long maxShardBytes = 0;
+    
+    /**
+     * Maximum number of rows in each csv shard. 0 means the output is not 
+     * split by row count.
+     * 
+     * @since 1.1.0
+     */
+    private long maxShardRows = 0;
+    
+    /**
+     * Print per file progress messages.
+     * 
+     * @since 1.1.0
+     */
+    private Boolean printProgress = true;
+    
+    /**
+     * StAX factory. Created once since the factory lookup is costly when 
+     * many files are parsed by the same parser.
+     * 
+     * @since 1.1.0
+     */
+    private XMLInputFactory xmlInputFactory = null;
+    
+    /**
+     * How the files of a directory are scheduled: null to parse them one 
+     * after the other, otherwise FileScheduler.VIRTUAL or 
+     * FileScheduler.PLATFORM.
+     * 
+     * @since 1.1.0
+     */
+    private String fileSchedulerMode = null;
+    
+    /**
+     * Number of files parsed at the same time by the file scheduler.
+     * 
+     * @since 1.1.0
+     */
+    private int parserThreads = Runtime.getRuntime().availableProcessors();
+    
+    /**
+     * Number of files read at the same time by the file scheduler.
+     * 
+     * @since 1.1.0
+     */
+    private int ioThreads = 16;
+    
+    /**
+     * With the byte scanner and the file scheduler, files of at least twice 
+     * this size are split at NE boundaries into chunks whose parameters 
+     * are extracted in parallel.
+     * 
+     * @since 1.1.0
+     */
+    private long discoveryChunkSize = 64L * 1024 * 1024;
+    
+    /**
+     * Keep per-file checkpoints so that a stopped run can be resumed.
+     * 
+     * @since 1.1.0
+     */
+    private boolean useCheckpoint = false;
+    
+    /**
+     * Checkpoint of the current run.
+     * 
+     * @since 1.1.0
+     */
+    private Checkpoint checkpoint = null;
+    
+    /**
+     * NEs to parse. null to parse all.
+     * 
+     * @since 1.1.0
+     */
+    private NEFilter neFilter = null;
+    
+    /**
+     * Number and size in bytes of the NEs skipped by the NE filter in the 
+     * value extraction pass. Shared with the file scheduler's workers.
+     * 
+     * @since 1.1.0
+     */
+    private AtomicLong skippedNEs = new AtomicLong();
+    
+    private AtomicLong skippedNEBytes = new AtomicLong();
+    
+    /**
+     * Build an in-memory CM store of the values while parsing.
+     * 
+     * @since 1.1.0
+     */
+    private boolean buildCMStore = false;
+    
+    /**
+     * The CM store only holds the rows parsed in this process, not the 
+     * segments loaded from a checkpoint or written by worker processes.
+     */
+    private static final String CM_STORE_CONFLICT 
+            = "The CM store cannot be built with checkpoints or worker processes";
+    
+    /**
+     * Collects the rows of the CM store in the value extraction pass. Shared 
+     * with the file scheduler's workers.
+     * 
+     * @since 1.1.0
+     */
+    private CMStore.Builder cmStoreBuilder = null;
+    
+    /**
+     * CM store of the last run.
+     * 
+     * @since 1.1.0
+     */
+    private CMStore cmStore = null;
+    
+    /**
+     * Number of worker processes each pass is run in. 0 to parse in this 
+     * process.
+     * 
+     * @since 1.1.0
+     */
+    private int workers = 0;
+    
+    /**
+     * Files of a worker process and the pass it runs. null if this is not a
+     * worker.
+     * 
+     * @since 1.1.0
+     */
+    private List<File> workerFiles = null;
+    
+    private int workerPass = ParserStates.EXTRACTING_PARAMETERS;
+    
+    /**
+     * Directory of the NE indexes written by the byte scanner. null to not 
+     * index the files.
+     * 
+     * @since 1.1.0
+     */
+    private String neIndexDirectory = null;
+    
+    /**
+     * Drop rows that were already written.
+     * 
+     * @since 1.1.0
+     */
+    private boolean deduplicate = false;
+    
+    /**
+     * The fingerprints are only kept by this process for this run, so rows 
+     * in the segments of other runs or processes would not be compared.
+     */
+    private static final String DEDUPLICATE_CONFLICT 
+            = "Duplicate rows cannot be dropped with checkpoints or worker processes";
+    
+    /**
+     * Fingerprints of the rows written in the value extraction pass. Shared
+     * with the file scheduler's workers.
+     * 
+     * @since 1.1.0
+     */
+    private RowFingerprints rowFingerprints = null;
+    
+    /**
+     * Number of duplicate rows dropped by the last run.
+     * 
+     * @since 1.1.0
+     */
+    private long duplicateRows = 0;
+    
+    /**
+     * Add a column for each switch of compound switch parameters.
+     * 
+     * @since 1.1.0
+     */
+    private boolean expandSwitches = false;
+    
+    private final SwitchExpander switchExpander = new SwitchExpander();
+    
+    /**
+     * Write filefooter.csv when the footer is parsed. File scheduler workers
+     * keep the footer in lastFileFooter instead and the footer of the last 
+     * file is written once all files have been parsed.
+     * 
+     * @since 1.1.0
+     */
+    private Boolean writeFileFooter = true;
+    
+    private String lastFileFooter = null;
+    
+    /**
+     * Output layouts. By default each managed object has one csv file.
+     * 
+     * @since 1.1.0
+     */
+    static final String PARTITION_BY_NE = "ne";
+    
+    static final String PARTITION_BY_NETYPE = "netype";
+    
+    /**
+     * Output layout. null for one csv file per managed object, 
+     * PARTITION_BY_NE for &lt;MO&gt;/neid=&lt;neid&gt;.csv or PARTITION_BY_NETYPE 
+     * for &lt;MO&gt;/netype=&lt;netype&gt;/neid=&lt;neid&gt;.csv.
+     * 
+     * @since 1.1.0
+     */
+    private String partitionBy = null;
+    
+    /**
+     * Partition of the NE being parsed, e.g. netype=NodeB/neid=1001.
+     * 
+     * @since 1.1.0
+     */
+    private String nePartition = null;
+    
+    /**
+     * Partition state shared with the file scheduler's workers. Guarded by 
+     * moiPrintWriters. 
+     * 
+     * openPartitions counts the workers inside each partition, 
+     * partitionWriters holds each open partition's writers and 
+     * writtenPartitions the closed partitions that are appended to if the 
+     * NE appears again.
+     * 
+     * @since 1.1.0
+     */
+    private Map<String, Integer> openPartitions = new HashMap<String, Integer>();
+    
+    private Map<String, List<MOCsvWriter>> partitionWriters 
+            = new HashMap<String, List<MOCsvWriter>>();
+    
+    private Set<String> writtenPartitions = new HashSet<String>();
+    
+    /**
+     * manifest.csv writer when the output is sharded.
+     * 
+     * @since 1.1.0
+     */
+    private PrintWriter manifestWriter = null;
    
     
     /**
@@ -235,7 +558,7 @@ public class HuaweiCMXMLParser {
      * 
      * @param filename 
      */
-    public static void getParametersToExtract(String filename) throws FileNotFoundException, IOException{
+    public void getParametersToExtract(String filename) throws FileNotFoundException, IOException{
         BufferedReader br = new BufferedReader(new FileReader(filename));
         for(String line; (line = br.readLine()) != null; ) {
            String [] moAndParameters =  line.split(":");
@@ -246,7 +569,9 @@ public class HuaweiCMXMLParser {
            for(int i =0; i < parameters.length; i++){
                parameterStack.push(parameters[i]);
            }
+           moColumns.put(mo, parameterStack);
         }
+        br.close();
         
         parserState = ParserStates.EXTRACTING_VALUES;
     }
@@ -267,77 +592,754 @@ public class HuaweiCMXMLParser {
     public void setExtractMetaFields(Boolean bool){
         extractMetaFields = bool;
     }
-
-    public static void main( String[] args )
-    {
-        
-       Options options = new Options();
-       CommandLine cmd = null;
-       String outputDirectory = null;   
-       String inputFile = null;
-       String parameterConfigFile = null;
-       Boolean onlyExtractParameters = false;
-       Boolean showHelpMessage = false;
-       Boolean showVersion = false;
-       Boolean attachMetaFields = false; //Attach mattachMetaFields FILENAME,DATETIME,NE_TECHNOLOGY,NE_VENDOR,NE_VERSION,NE_TYPE
-       
-       try{ 
-            options.addOption( "p", "extract-parameters", false, "extract only the managed objects and parameters" );
-            options.addOption( "v", "version", false, "display version" );
-//            options.addOption( "m", "meta-fields", false, "add meta fields to extracted parameters. FILENAME,DATETIME" );
-            options.addOption( Option.builder("i")
-                    .longOpt( "input-file" )
-                    .desc( "input file or directory name")
-                    .hasArg()
-                    .argName( "INPUT_FILE" ).build());
-            options.addOption(Option.builder("o")
-                    .longOpt( "output-directory" )
-                    .desc( "output directory name")
-                    .hasArg()
-                    .argName( "OUTPUT_DIRECTORY" ).build());
-            options.addOption(Option.builder("c")
-                    .longOpt( "parameter-config" )
-                    .desc( "parameter configuration file")
-                    .hasArg()
-                    .argName( "PARAMETER_CONFIG" ).build() );
-            options.addOption( "h", "help", false, "show help" );
-            
-            //Parse command line arguments
-            CommandLineParser parser = new DefaultParser();
-            cmd = parser.parse( options, args);
-
-            if( cmd.hasOption("h")){
-                showHelpMessage = true;
-            }
-
-            if( cmd.hasOption("v")){
-                showVersion = true;
-            }
-            
-            if(cmd.hasOption('o')){
-                outputDirectory = cmd.getOptionValue("o"); 
-            }
-            
-            if(cmd.hasOption('i')){
-                inputFile = cmd.getOptionValue("i"); 
-            }
-            
-            if(cmd.hasOption('c')){
-                parameterConfigFile = cmd.getOptionValue("c"); 
-            }
-            
-            if(cmd.hasOption('p')){
-                onlyExtractParameters  = true;
-            }
-            
-            if(cmd.hasOption('m')){
-                attachMetaFields  = true;
-            }
-            
-       }catch(IllegalArgumentException e){
-           
-       } catch (ParseException ex) {
-//            java.util.logging.Logger.getLogger(HuaweiCMObjectParser.class.getName()).log(Level.SEVERE, null, ex);
+    
+    /**
+     * Use the memory-mapped byte scanner. Files it cannot handle are parsed 
+     * with StAX.
+     * 
+     * @since 1.1.0
+     * @param bool 
+     */
+    public void setUseByteScanner(Boolean bool){
+        useByteScanner = bool;
+    }
+    
+    /**
+     * Split each managed object's csv file into shards of at most the given 
+     * size.
+     * 
+     * @since 1.1.0
+     * @param bytes Maximum shard size. 0 to disable
+     */
+    public void setMaxShardBytes(long bytes){
+        maxShardBytes = bytes;
+    }
+    
+    /**
+     * Split each managed object's csv file into shards of at most the given 
+     * number of rows.
+     * 
+     * @since 1.1.0
+     * @param rows Maximum rows per shard. 0 to disable
+     */
+    public void setMaxShardRows(long rows){
+        maxShardRows = rows;
+    }
+    
+    /**
+     * Enable or disable the per file progress messages.
+     * 
+     * @since 1.1.0
+     * @param bool 
+     */
+    public void setPrintProgress(Boolean bool){
+        printProgress = bool;
+    }
+    
+    /**
+     * Parse the files of a directory with the file scheduler.
+     * 
+     * @since 1.1.0
+     * @param mode FileScheduler.VIRTUAL or FileScheduler.PLATFORM. null 
+     *             to parse the files one after the other
+     * @param parserThreads Number of files parsed at the same time
+     * @param ioThreads Number of files read at the same time
+     */
+    public void setFileScheduler(String mode, int parserThreads, int ioThreads){
+        this.fileSchedulerMode = mode;
+        this.parserThreads = parserThreads;
+        this.ioThreads = ioThreads;
+    }
+    
+    /**
+     * Size of the chunks large files are split into to extract their 
+     * parameters in parallel.
+     * 
+     * @since 1.1.0
+     * @param size Chunk size in bytes
+     */
+    public void setDiscoveryChunkSize(long size){
+        this.discoveryChunkSize = size;
+    }
+    
+    /**
+     * Keep per-file checkpoints in &lt;output directory&gt;/.checkpoint. Running 
+     * again after a run was stopped resumes from the first unfinished file.
+     * 
+     * @since 1.1.0
+     * @param bool
+     * @throws IllegalArgumentException If the CM store or deduplication is 
+     *         enabled
+     */
+    public void setCheckpoint(boolean bool){
+        if( bool && buildCMStore ){
+            throw new IllegalArgumentException(CM_STORE_CONFLICT);
+        }
+        if( bool && deduplicate ){
+            throw new IllegalArgumentException(DEDUPLICATE_CONFLICT);
+        }
+        this.useCheckpoint = bool;
+    }
+    
+    /**
+     * Only parse the NEs matching the filter.
+     * 
+     * @since 1.1.0
+     * @param filter NE filter or null to parse all NEs
+     */
+    public void setNEFilter(NEFilter filter){
+        this.neFilter = filter;
+    }
+    
+    /**
+     * Keep the extracted values in a CM store that can be queried by NE with
+     * getCMStore once the run is done. The store only holds the rows parsed 
+     * in this process, so it cannot be used with checkpoints, which load 
+     * the output of earlier runs, or with worker processes.
+     * 
+     * @since 1.1.0
+     * @param bool
+     * @throws IllegalArgumentException If checkpoints or workers are enabled
+     */
+    public void setCMStoreEnabled(boolean bool){
+        if( bool && ( useCheckpoint || workers > 1 ) ){
+            throw new IllegalArgumentException(CM_STORE_CONFLICT);
+        }
+        this.buildCMStore = bool;
+    }
+    
+    /**
+     * Run each pass in worker processes on this machine, splitting the 
+     * files between them. Implies setCheckpoint(true).
+     * 
+     * @since 1.1.0
+     * @param count Number of workers. 0 or 1 to parse in this process
+     * @throws IllegalArgumentException If the CM store or deduplication is 
+     *         enabled
+     */
+    public void setWorkers(int count){
+        if( count > 1 && buildCMStore ){
+            throw new IllegalArgumentException(CM_STORE_CONFLICT);
+        }
+        if( count > 1 && deduplicate ){
+            throw new IllegalArgumentException(DEDUPLICATE_CONFLICT);
+        }
+        this.workers = count;
+    }
+    
+    /**
+     * Write an NE index of each file parsed by the byte scanner, and read 
+     * the indexes from it in extractNE.
+     * 
+     * @since 1.1.0
+     * @param directory Directory of the indexes or null to not index
+     */
+    public void setNEIndexDirectory(String directory){
+        this.neIndexDirectory = directory;
+    }
+    
+    /**
+     * Write the rows of all the managed objects to one stream instead of 
+     * csv files. Each row is prefixed with its managed object and each 
+     * header row with # and the managed object:
+     * <pre>
+     * #CELL,FileName,varDateTime,...,CELLID,CELLNAME
+     * CELL,nbi.xml,...,0,Cell 0
+     * </pre>
+     * When standard input is parsed without a parameter file the columns 
+     * are found as the rows are written, and a managed object's header is 
+     * written again with the new columns appended whenever it grows. 
+     * Progress and error messages are printed to standard error.
+     * 
+     * @since 1.1.0
+     * @param out The stream
+     */
+    public void setOutputStream(OutputStream out){
+        this.streamWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out)));
+        this.messages = System.err;
+    }
+    
+    /**
+     * Drop rows identical to a row already written, from this or another 
+     * file, apart from the file name and date time. The whole row is 
+     * compared, so two exports of an instance that differ in any parameter 
+     * are both kept. Rows are only compared within the run, so this cannot 
+     * be used with checkpoints or worker processes.
+     * 
+     * @since 1.1.0
+     * @param bool
+     * @throws IllegalArgumentException If checkpoints or workers are enabled
+     */
+    public void setDeduplicate(boolean bool){
+        if( bool && ( useCheckpoint || workers > 1 ) ){
+            throw new IllegalArgumentException(DEDUPLICATE_CONFLICT);
+        }
+        this.deduplicate = bool;
+    }
+    
+    /**
+     * Expand compound switch parameters such as SW=A-1&amp;B-0 into the 
+     * columns SW_A and SW_B, keeping SW.
+     * 
+     * @since 1.1.0
+     * @param bool
+     */
+    public void setExpandSwitches(boolean bool){
+        this.expandSwitches = bool;
+    }
+    
+    /**
+     * Number of duplicate rows dropped by the last run.
+     * 
+     * @since 1.1.0
+     */
+    public long getDuplicateRows(){
+        return duplicateRows;
+    }
+    
+    /**
+     * Make this parser a worker of a WorkerCoordinator.
+     * 
+     * @since 1.1.0
+     * @param files Files to parse
+     * @param pass WorkerCoordinator.PARAMETERS or WorkerCoordinator.VALUES
+     */
+    void setWorkerFiles(List<File> files, String pass){
+        if( !pass.equals(WorkerCoordinator.PARAMETERS) && !pass.equals(WorkerCoordinator.VALUES) ){
+            throw new IllegalArgumentException("Unknown worker pass " + pass);
+        }
+        this.workerFiles = files;
+        this.workerPass = pass.equals(WorkerCoordinator.PARAMETERS) 
+                ? ParserStates.EXTRACTING_PARAMETERS : ParserStates.EXTRACTING_VALUES;
+        this.useCheckpoint = true;
+    }
+    
+    /**
+     * Command line arguments that give a worker process the settings of 
+     * this parser.
+     * 
+     * @since 1.1.0
+     */
+    List<String> workerArguments(){
+        List<String> args = new ArrayList<String>();
+        args.add("-i");
+        args.add(dataSource);
+        args.add("-o");
+        args.add(outputDirectory);
+        if( useByteScanner ){
+            args.add("-s");
+        }
+        if( parameterFile != null ){
+            args.add("-c");
+            args.add(parameterFile);
+        }
+        if( maxShardBytes > 0 ){
+            args.add("--shard-size");
+            args.add(Long.toString(maxShardBytes));
+        }
+        if( maxShardRows > 0 ){
+            args.add("--shard-rows");
+            args.add(Long.toString(maxShardRows));
+        }
+        if( fileSchedulerMode != null ){
+            args.add("--scheduler");
+            args.add(fileSchedulerMode);
+            args.add("-t");
+            args.add(Integer.toString(parserThreads));
+            args.add("--io-threads");
+            args.add(Integer.toString(ioThreads));
+        }
+        if( partitionBy != null ){
+            args.add("--partition-by");
+            args.add(partitionBy);
+        }
+        if( neIndexDirectory != null ){
+            args.add("--ne-index");
+            args.add(neIndexDirectory);
+        }
+        if( expandSwitches ){
+            args.add("--expand-switches");
+        }
+        args.add("--chunk-size");
+        args.add(Long.toString(discoveryChunkSize));
+        if( neFilter != null ){
+            for(String condition : neFilter.getConditions()){
+                args.add("--ne-filter");
+                args.add(condition);
+            }
+        }
+        return args;
+    }
+    
+    /**
+     * CM store of the last run.
+     * 
+     * @since 1.1.0
+     * @return The store or null if it was not enabled
+     */
+    public CMStore getCMStore(){
+        return cmStore;
+    }
+    
+    /**
+     * Number of NEs skipped by the NE filter.
+     * 
+     * @since 1.1.0
+     */
+    public long getSkippedNEs(){
+        return skippedNEs.get();
+    }
+    
+    /**
+     * Bytes of the NEs skipped by the NE filter. With StAX the size is 
+     * counted in characters.
+     * 
+     * @since 1.1.0
+     */
+    public long getSkippedNEBytes(){
+        return skippedNEBytes.get();
+    }
+    
+    /**
+     * Whether an NE is skipped by the NE filter.
+     * 
+     * @since 1.1.0
+     * @param attributes Attributes of the NE tag
+     */
+    boolean isFilteredOut(Map<String, String> attributes){
+        return neFilter != null && !neFilter.matches(attributes);
+    }
+    
+    /**
+     * Count an NE skipped by the NE filter.
+     * 
+     * @since 1.1.0
+     * @param bytes Size of the NE
+     */
+    void addSkippedNE(long bytes){
+        if( parserState == ParserStates.EXTRACTING_VALUES ){
+            skippedNEs.incrementAndGet();
+            skippedNEBytes.addAndGet(bytes);
+        }
+    }
+    
+    /**
+     * Partition each managed object's output by NE.
+     * 
+     * @since 1.1.0
+     * @param layout PARTITION_BY_NE, PARTITION_BY_NETYPE or null for one 
+     *               file per managed object
+     * @throws IllegalArgumentException If the layout is unknown
+     */
+    public void setPartitionBy(String layout){
+        if( layout != null ){
+            checkPartitionBy(layout);
+        }
+        this.partitionBy = layout;
+    }
+    
+    private static void checkPartitionBy(String layout){
+        if( !layout.equals(PARTITION_BY_NE) && !layout.equals(PARTITION_BY_NETYPE) ){
+            throw new IllegalArgumentException("Unknown partition layout " + layout 
+                    + ". Expected " + PARTITION_BY_NE + " or " + PARTITION_BY_NETYPE);
+        }
+    }
+    
+    /**
+     * Copy the parsing and output settings of another parser.
+     * 
+     * @since 1.1.0
+     * @param other 
+     */
+    void copySettingsFrom(HuaweiCMXMLParser other){
+        extractParametersOnly = other.extractParametersOnly;
+        extractMetaFields = other.extractMetaFields;
+        parameterFile = other.parameterFile;
+        useByteScanner = other.useByteScanner;
+        maxShardBytes = other.maxShardBytes;
+        maxShardRows = other.maxShardRows;
+        printProgress = other.printProgress;
+        fileSchedulerMode = other.fileSchedulerMode;
+        parserThreads = other.parserThreads;
+        ioThreads = other.ioThreads;
+        partitionBy = other.partitionBy;
+        discoveryChunkSize = other.discoveryChunkSize;
+        neFilter = other.neFilter;
+        neIndexDirectory = other.neIndexDirectory;
+        deduplicate = other.deduplicate;
+        expandSwitches = other.expandSwitches;
+        messages = other.messages;
+    }
+    
+    /**
+     * Clear the state left by the previous run so that the parser can be 
+     * reused for another data source. Settings are kept.
+     * 
+     * @since 1.1.0
+     * @throws IOException 
+     */
+    void reset() throws IOException {
+        closeMOPWMap();
+        baseFileName = "";
+        clearElementState();
+        varDateTime = null;
+        moColumns.clear();
+        scannerVerifiedFiles.clear();
+        nePartition = null;
+        growColumns = false;
+        checkpoint = null;
+        cmStoreBuilder = null;
+        cmStore = null;
+        rowFingerprints = null;
+        duplicateRows = 0;
+        skippedNEs.set(0);
+        skippedNEBytes.set(0);
+        parserState = ParserStates.EXTRACTING_PARAMETERS;
+        
+        if( parameterFile != null ){
+            getParametersToExtract(parameterFile);
+        }
+    }
+    
+    /**
+     * Value of a numeric command line option.
+     * 
+     * @since 1.1.0
+     * @param cmd Parsed command line
+     * @param option Long name of the option
+     * @param size true if the value is a size as taken by parseSize
+     * @param min Smallest value allowed
+     * @param max Largest value allowed
+     * @return The value
+     * @throws IllegalArgumentException If the value is not a number between 
+     *         min and max
+     */
+    static long parseNumber(CommandLine cmd, String option, boolean size, long min, long max){
+        String value = cmd.getOptionValue(option);
+        long number;
+        try{
+            number = size ? parseSize(value) : Long.parseLong(value.trim());
+        }catch(NumberFormatException e){
+            throw new IllegalArgumentException("Invalid --" + option + " value " + value);
+        }
+        if( number < min ){
+            throw new IllegalArgumentException("--" + option + " must be at least " + min);
+        }
+        if( number > max ){
+            throw new IllegalArgumentException("--" + option + " must be at most " + max);
+        }
+        return number;
+    }
+    
+    /**
+     * Forget the NE, module and moi being parsed.
+     * 
+     * @since 1.1.0
+     */
+    private void clearElementState(){
+        neType = "";
+        neVersion = "";
+        neId = "";
+        neXSIType = "";
+        inMoi = false;
+        moiXSIType = "";
+        moduleXSIType = "";
+        moduleProductVersion = "";
+        moduleRemark = "";
+        tagData = "";
+        moiParameterValueMap.clear();
+    }
+    
+    /**
+     * Parse a size such as 512M or 2G into bytes.
+     * 
+     * @since 1.1.0
+     * @param size Number optionally followed by K, M or G
+     * @return size in bytes
+     */
+    public static long parseSize(String size){
+        String s = size.trim().toUpperCase();
+        long multiplier = 1;
+        if(s.endsWith("K")) multiplier = 1024L;
+        if(s.endsWith("M")) multiplier = 1024L*1024;
+        if(s.endsWith("G")) multiplier = 1024L*1024*1024;
+        if(multiplier > 1) s = s.substring(0, s.length() - 1);
+        return Long.parseLong(s) * multiplier;
+    }
+
+    public static void main( String[] args )
+    {
+        
+       Options options = new Options();
+       CommandLine cmd = null;
+       String outputDirectory = null;   
+       String inputFile = null;
+       String parameterConfigFile = null;
+       Boolean onlyExtractParameters = false;
+       Boolean showHelpMessage = false;
+       Boolean showVersion = false;
+       Boolean attachMetaFields = false; //Attach mattachMetaFields FILENAME,DATETIME,NE_TECHNOLOGY,NE_VENDOR,NE_VERSION,NE_TYPE
+       Boolean useByteScanner = false;
+       long shardBytes = 0;
+       long shardRows = 0;
+       Boolean watchDirectory = false;
+       int threads = Runtime.getRuntime().availableProcessors();
+       long settleTime = 5;
+       String schedulerMode = null;
+       int ioThreads = 16;
+       String partitionBy = null;
+       long chunkSize = 0;
+       boolean useCheckpoint = false;
+       NEFilter neFilter = null;
+       String snapshotFile = null;
+       int workers = 0;
+       String workerFiles = null;
+       String workerPass = null;
+       String neIndexDirectory = null;
+       String extractNEId = null;
+       String extractMO = null;
+       boolean deduplicate = false;
+       boolean expandSwitches = false;
+       
+       try{ 
+            options.addOption( "p", "extract-parameters", false, "extract only the managed objects and parameters" );
+            options.addOption( "v", "version", false, "display version" );
+            options.addOption( "s", "byte-scanner", false, "parse with the memory-mapped byte scanner (falls back to StAX on unsupported input)" );
+//            options.addOption( "m", "meta-fields", false, "add meta fields to extracted parameters. FILENAME,DATETIME" );
+            options.addOption( Option.builder("i")
+                    .longOpt( "input-file" )
+                    .desc( "input file or directory name. - for standard input")
+                    .hasArg()
+                    .argName( "INPUT_FILE" ).build());
+            options.addOption(Option.builder("o")
+                    .longOpt( "output-directory" )
+                    .desc( "output directory name. - to write the rows of all MOs to standard output, each prefixed with its MO")
+                    .hasArg()
+                    .argName( "OUTPUT_DIRECTORY" ).build());
+            options.addOption(Option.builder("c")
+                    .longOpt( "parameter-config" )
+                    .desc( "parameter configuration file")
+                    .hasArg()
+                    .argName( "PARAMETER_CONFIG" ).build() );
+            options.addOption(Option.builder()
+                    .longOpt( "shard-size" )
+                    .desc( "split each MO csv into shards of at most SIZE bytes. K, M and G suffixes are allowed")
+                    .hasArg()
+                    .argName( "SIZE" ).build());
+            options.addOption(Option.builder()
+                    .longOpt( "shard-rows" )
+                    .desc( "split each MO csv into shards of at most ROWS rows")
+                    .hasArg()
+                    .argName( "ROWS" ).build());
+            options.addOption( "w", "watch", false, "watch the input directory and parse files as they arrive" );
+            options.addOption(Option.builder("t")
+                    .longOpt( "threads" )
+                    .desc( "number of files parsed at the same time. Defaults to the number of processors")
+                    .hasArg()
+                    .argName( "THREADS" ).build());
+            options.addOption(Option.builder()
+                    .longOpt( "settle-time" )
+                    .desc( "seconds a watched file must remain unchanged before it is parsed. Defaults to 5")
+                    .hasArg()
+                    .argName( "SECONDS" ).build());
+            options.addOption(Option.builder()
+                    .longOpt( "scheduler" )
+                    .desc( "parse the files of a directory concurrently, reading them on virtual or platform I/O threads")
+                    .hasArg()
+                    .argName( "virtual|platform" ).build());
+            options.addOption(Option.builder()
+                    .longOpt( "io-threads" )
+                    .desc( "number of files read at the same time by the scheduler. Defaults to 16")
+                    .hasArg()
+                    .argName( "THREADS" ).build());
+            options.addOption(Option.builder()
+                    .longOpt( "ne-filter" )
+                    .desc( "only parse NEs whose ATTR (type, netype, neversion or neid) is one of VALUES. A value ending with * matches a prefix. Can be repeated")
+                    .hasArg()
+                    .argName( "ATTR=VALUES" ).build());
+            options.addOption(Option.builder()
+                    .longOpt( "expand-switches" )
+                    .desc( "add a column PARAM_SWITCH for each switch of compound switch values of two or more switches such as PARAM=SWITCH_A-1&SWITCH_B-0")
+                    .build());
+            options.addOption(Option.builder()
+                    .longOpt( "dedup" )
+                    .desc( "drop rows already written from this or another file whose values other than the file name and date time are all the same. Cannot be used with --checkpoint or --workers")
+                    .build());
+            options.addOption(Option.builder()
+                    .longOpt( "ne-index" )
+                    .desc( "with -s, write the byte offsets of the NEs of each file to DIR/FILE.neidx. With --extract-ne, read the index from DIR")
+                    .hasArg()
+                    .argName( "DIR" ).build());
+            options.addOption(Option.builder()
+                    .longOpt( "extract-ne" )
+                    .desc( "parse only the NE NEID of the input file by seeking to it with the file's NE index")
+                    .hasArg()
+                    .argName( "NEID" ).build());
+            options.addOption(Option.builder()
+                    .longOpt( "mo" )
+                    .desc( "with --extract-ne, only extract managed object MO")
+                    .hasArg()
+                    .argName( "MO" ).build());
+            options.addOption(Option.builder()
+                    .longOpt( "workers" )
+                    .desc( "run each pass in N worker JVMs, splitting the files between them. Uses a checkpoint")
+                    .hasArg()
+                    .argName( "N" ).build());
+            options.addOption(Option.builder()
+                    .longOpt( "worker-files" )
+                    .desc( "internal: files of a worker started by --workers")
+                    .hasArg()
+                    .argName( "FILE" ).build());
+            options.addOption(Option.builder()
+                    .longOpt( "worker-pass" )
+                    .desc( "internal: pass run by a worker started by --workers")
+                    .hasArg()
+                    .argName( "parameters|values" ).build());
+            options.addOption(Option.builder()
+                    .longOpt( "snapshot" )
+                    .desc( "save a CM store of the values, indexed by NE, to FILE. See CMStore.load. Cannot be used with --checkpoint or --workers")
+                    .hasArg()
+                    .argName( "FILE" ).build());
+            options.addOption(Option.builder()
+                    .longOpt( "checkpoint" )
+                    .desc( "keep per-file checkpoints in the output directory. Running the same command again after a run was stopped resumes it")
+                    .build());
+            options.addOption(Option.builder()
+                    .longOpt( "chunk-size" )
+                    .desc( "with -s and --scheduler, split files into chunks of SIZE whose parameters are extracted in parallel. Defaults to 64M")
+                    .hasArg()
+                    .argName( "SIZE" ).build());
+            options.addOption(Option.builder()
+                    .longOpt( "partition-by" )
+                    .desc( "write each MO as MO/neid=NEID.csv (ne) or MO/netype=NETYPE/neid=NEID.csv (netype)")
+                    .hasArg()
+                    .argName( "ne|netype" ).build());
+            options.addOption( "h", "help", false, "show help" );
+            
+            //Parse command line arguments
+            CommandLineParser parser = new DefaultParser();
+            cmd = parser.parse( options, args);
+
+            if( cmd.hasOption("h")){
+                showHelpMessage = true;
+            }
+
+            if( cmd.hasOption("v")){
+                showVersion = true;
+            }
+            
+            if(cmd.hasOption('o')){
+                outputDirectory = cmd.getOptionValue("o"); 
+            }
+            
+            if(cmd.hasOption('i')){
+                inputFile = cmd.getOptionValue("i"); 
+            }
+            
+            if(cmd.hasOption('c')){
+                parameterConfigFile = cmd.getOptionValue("c"); 
+            }
+            
+            if(cmd.hasOption('p')){
+                onlyExtractParameters  = true;
+            }
+            
+            if(cmd.hasOption('m')){
+                attachMetaFields  = true;
+            }
+            
+            if(cmd.hasOption('s')){
+                useByteScanner  = true;
+            }
+            
+            if(cmd.hasOption("shard-size")){
+                shardBytes = parseNumber(cmd, "shard-size", true, 1, Long.MAX_VALUE);
+            }
+            
+            if(cmd.hasOption("shard-rows")){
+                shardRows = parseNumber(cmd, "shard-rows", false, 1, Long.MAX_VALUE);
+            }
+            
+            if(cmd.hasOption('w')){
+                watchDirectory  = true;
+            }
+            
+            if(cmd.hasOption('t')){
+                threads = (int) parseNumber(cmd, "threads", false, 1, Integer.MAX_VALUE);
+            }
+            
+            if(cmd.hasOption("scheduler")){
+                schedulerMode = cmd.getOptionValue("scheduler");
+                if(!schedulerMode.equals(FileScheduler.VIRTUAL) 
+                        && !schedulerMode.equals(FileScheduler.PLATFORM)){
+                    throw new IllegalArgumentException("Unknown scheduler " + schedulerMode 
+                            + ". Expected " + FileScheduler.VIRTUAL + " or " + FileScheduler.PLATFORM);
+                }
+            }
+            
+            if(cmd.hasOption("ne-filter")){
+                neFilter = new NEFilter();
+                for(String condition : cmd.getOptionValues("ne-filter")){
+                    neFilter.add(condition);
+                }
+            }
+            
+            if(cmd.hasOption("checkpoint")){
+                useCheckpoint = true;
+            }
+            
+            if(cmd.hasOption("expand-switches")){
+                expandSwitches = true;
+            }
+            
+            if(cmd.hasOption("dedup")){
+                deduplicate = true;
+            }
+            
+            if(cmd.hasOption("ne-index")){
+                neIndexDirectory = cmd.getOptionValue("ne-index");
+            }
+            
+            if(cmd.hasOption("extract-ne")){
+                extractNEId = cmd.getOptionValue("extract-ne");
+                extractMO = cmd.getOptionValue("mo");
+            }
+            
+            if(cmd.hasOption("workers")){
+                workers = (int) parseNumber(cmd, "workers", false, 1, Integer.MAX_VALUE);
+            }
+            
+            if(cmd.hasOption("worker-files")){
+                workerFiles = cmd.getOptionValue("worker-files");
+                workerPass = cmd.getOptionValue("worker-pass", WorkerCoordinator.PARAMETERS);
+            }
+            
+            if(cmd.hasOption("snapshot")){
+                snapshotFile = cmd.getOptionValue("snapshot");
+            }
+            
+            if(cmd.hasOption("chunk-size")){
+                chunkSize = parseNumber(cmd, "chunk-size", true, 1, Long.MAX_VALUE);
+            }
+            
+            if(cmd.hasOption("partition-by")){
+                partitionBy = cmd.getOptionValue("partition-by");
+                checkPartitionBy(partitionBy);
+            }
+            
+            if(cmd.hasOption("io-threads")){
+                ioThreads = (int) parseNumber(cmd, "io-threads", false, 1, Integer.MAX_VALUE);
+            }
+            
+            if(cmd.hasOption("settle-time")){
+                settleTime = parseNumber(cmd, "settle-time", false, 0, Long.MAX_VALUE / 1000);
+            }
+            
+       }catch(IllegalArgumentException e){
+           System.err.println("ERROR: " + e.getMessage());
+           System.exit(1);
+       } catch (ParseException ex) {
+//            java.util.logging.Logger.getLogger(HuaweiCMObjectParser.class.getName()).log(Level.SEVERE, null, ex);
         }
        
        
@@ -361,6 +1363,18 @@ public class HuaweiCMXMLParser {
                      footer += "Examples: \n";
                      footer += "java -jar boda-huaweicmxmlparser.jar -i nbi_dump.xml -o out_folder\n";
                      footer += "java -jar boda-huaweicmxmlparser.jar -i input_folder -o out_folder\n";
+                     footer += "java -jar boda-huaweicmxmlparser.jar -i input_folder -o out_folder --shard-size 1G\n";
+                     footer += "java -jar boda-huaweicmxmlparser.jar -i input_folder -o out_folder -w\n";
+                     footer += "java -jar boda-huaweicmxmlparser.jar -i input_folder -o out_folder --partition-by ne\n";
+                     footer += "java -jar boda-huaweicmxmlparser.jar -i input_folder -o out_folder --checkpoint\n";
+                     footer += "java -jar boda-huaweicmxmlparser.jar -i input_folder -o out_folder --ne-filter netype=BTS3900 -s\n";
+                     footer += "java -jar boda-huaweicmxmlparser.jar -i input_folder -o out_folder --snapshot cm.store\n";
+                     footer += "java -jar boda-huaweicmxmlparser.jar -i input_folder -o out_folder --workers 4 -s\n";
+                     footer += "java -jar boda-huaweicmxmlparser.jar -i nbi_dump.xml -o out_folder -s --ne-index index_folder\n";
+                     footer += "java -jar boda-huaweicmxmlparser.jar -i nbi_dump.xml -o out_folder --ne-index index_folder --extract-ne 1234 --mo CELL\n";
+                     footer += "java -jar boda-huaweicmxmlparser.jar -i input_folder -o out_folder --dedup\n";
+                     footer += "java -jar boda-huaweicmxmlparser.jar -i input_folder -o out_folder --expand-switches\n";
+                     footer += "zcat nbi_dump.xml.gz | java -jar boda-huaweicmxmlparser.jar -i - -o -\n";
                      footer += "\nCopyright (c) 2019 Bodastage Solutions(http://www.bodastage.com)";
                      formatter.printHelp( "java -jar boda-huaweicmxmlparser.jar", header, options, footer );
                      System.exit(0);
@@ -368,7 +1382,25 @@ public class HuaweiCMXMLParser {
         
             //Confirm that the output directory is a directory and has write 
             //privileges
-            if(outputDirectory != null ){
+            boolean toStandardOutput = STANDARD_STREAM.equals(outputDirectory);
+            if( snapshotFile != null && ( useCheckpoint || workers > 1 ) ){
+                System.err.println("ERROR: --snapshot cannot be used with --checkpoint or --workers.");
+                System.exit(1);
+            }
+            
+            if( deduplicate && ( useCheckpoint || workers > 1 ) ){
+                System.err.println("ERROR: --dedup cannot be used with --checkpoint or --workers.");
+                System.exit(1);
+            }
+            
+            if( toStandardOutput && ( useCheckpoint || workers > 0 || schedulerMode != null 
+                    || partitionBy != null || shardBytes > 0 || shardRows > 0 || watchDirectory 
+                    || extractNEId != null ) ){
+                System.err.println("ERROR: --checkpoint, --workers, --scheduler, --partition-by, --extract-ne, shards and watch mode cannot write to standard output.");
+                System.exit(1);
+            }
+            
+            if(outputDirectory != null && !toStandardOutput ){
                 File fOutputDir = new File(outputDirectory);
                 if (!fOutputDir.isDirectory()) {
                     System.err.println("ERROR: The specified output directory is not a directory!.");
@@ -383,7 +1415,7 @@ public class HuaweiCMXMLParser {
             
             //Confirm that the input directory or file can be read
             File fInputFile = new File(inputFile);
-            if(!fInputFile.isFile() && !fInputFile.isDirectory()){
+            if(!STANDARD_STREAM.equals(inputFile) && !fInputFile.isFile() && !fInputFile.isDirectory()){
                     System.err.println("ERROR: The specified input file/directory can not be accessed!.");
                     System.exit(1);
             }
@@ -399,61 +1431,330 @@ public class HuaweiCMXMLParser {
                 cmParser.setExtractMetaFields(true);
             }
             
+            if( useByteScanner == true ){
+                cmParser.setUseByteScanner(true);
+            }
+            
+            cmParser.setMaxShardBytes(shardBytes);
+            cmParser.setMaxShardRows(shardRows);
+            
+            if( schedulerMode != null ){
+                cmParser.setFileScheduler(schedulerMode, threads, ioThreads);
+            }
+            
+            cmParser.setPartitionBy(partitionBy);
+            
+            if( chunkSize > 0 ){
+                cmParser.setDiscoveryChunkSize(chunkSize);
+            }
+            
+            cmParser.setCheckpoint(useCheckpoint);
+            cmParser.setNEFilter(neFilter);
+            cmParser.setCMStoreEnabled(snapshotFile != null);
+            cmParser.setWorkers(workers);
+            cmParser.setNEIndexDirectory(neIndexDirectory);
+            cmParser.setDeduplicate(deduplicate);
+            cmParser.setExpandSwitches(expandSwitches);
+            
+            if( workerFiles != null ){
+                List<File> files = new ArrayList<File>();
+                for(String line : Files.readAllLines(Paths.get(workerFiles), StandardCharsets.UTF_8)){
+                    files.add(new File(line));
+                }
+                cmParser.setWorkerFiles(files, workerPass);
+            }
+            
             if(  parameterConfigFile != null ){
                 File f = new File(parameterConfigFile);
                 if(f.isFile()){
                     cmParser.setParameterFile(parameterConfigFile);
                     cmParser.getParametersToExtract(parameterConfigFile);
-                    cmParser.parserState = ParserStates.EXTRACTING_VALUES;
                 }
             }
             
+            if( watchDirectory == true ){
+                if( !fInputFile.isDirectory() || outputDirectory == null ){
+                    System.err.println("ERROR: Watch mode requires an input directory and an output directory.");
+                    System.exit(1);
+                }
+                
+                new HuaweiCMXMLWatcher(cmParser, inputFile, outputDirectory, 
+                        threads, settleTime).run();
+                return;
+            }
             
             cmParser.setDataSource(inputFile);
             if(outputDirectory != null ) cmParser.setOutputDirectory(outputDirectory);
 
             cmParser.setOutputDirectory(outputDirectory);
+            
+            if( extractNEId != null ){
+                cmParser.extractNE(inputFile, extractNEId, extractMO);
+                cmParser.printExecutionTime();
+                return;
+            }
+            
+            if( toStandardOutput ){
+                //Standard output only carries rows
+                cmParser.setPrintProgress(false);
+                cmParser.setOutputStream(System.out);
+            }
+            
             cmParser.parse();
+            
+            if( snapshotFile != null ){
+                cmParser.getCMStore().save(new File(snapshotFile));
+            }
+            
             cmParser.printExecutionTime();
             
         }catch(Exception e){
-            System.out.println(e.getMessage());
+            //Keep errors out of the rows written to standard output
+            (STANDARD_STREAM.equals(outputDirectory) ? System.err : System.out).println(e.getMessage());
             System.exit(1);
         }
-
-
+
+
+    }
+
+    
+    HuaweiCMXMLParser(){}
+    
+    /**
+     * Parser entry point 
+     * 
+     * @since 1.0.0
+     * @version 1.1.0
+     * 
+     * @throws XMLStreamException
+     * @throws FileNotFoundException
+     * @throws UnsupportedEncodingException 
+     */
+    public void parse() throws XMLStreamException, FileNotFoundException, UnsupportedEncodingException {
+        WorkerCoordinator coordinator = null;
+        if( workers > 1 && workerFiles == null ){
+            coordinator = new WorkerCoordinator(listFiles(), workers, workerArguments(), 
+                    outputDirectory, printProgress);
+        }
+        
+        if( useCheckpoint || coordinator != null ){
+            resumeCheckpoint();
+        }
+        
+        //Standard input can only be read once
+        if( STANDARD_STREAM.equals(dataSource) && parserState == ParserStates.EXTRACTING_PARAMETERS ){
+            if( streamWriter == null ){
+                throw new XMLStreamException("Parsing standard input requires a parameter "
+                        + "file or writing to an output stream");
+            }
+            growColumns = true;
+            varDateTime = "";
+            parserState = ParserStates.EXTRACTING_VALUES;
+        }
+        
+        //Extract parameters
+        if (parserState == ParserStates.EXTRACTING_PARAMETERS) {
+            runWorkers(coordinator, WorkerCoordinator.PARAMETERS);
+            processFileOrDirectory();
+
+            parserState = ParserStates.EXTRACTING_VALUES;
+            if( workerFiles != null && workerPass == ParserStates.EXTRACTING_PARAMETERS ){
+                parserState = ParserStates.EXTRACTING_DONE;
+                return;
+            }
+        }
+
+        //Extracting values
+        if (parserState == ParserStates.EXTRACTING_VALUES) {
+            runWorkers(coordinator, WorkerCoordinator.VALUES);
+            
+            if( workerFiles == null && streamWriter == null 
+                    && ( maxShardBytes > 0 || maxShardRows > 0 ) ){
+                manifestWriter = new PrintWriter(outputDirectory + File.separatorChar + "manifest.csv");
+                manifestWriter.println("mo,shard,file,rows,bytes");
+            }
+            
+            if( buildCMStore ){
+                cmStoreBuilder = new CMStore.Builder();
+            }
+            
+            if( deduplicate ){
+                rowFingerprints = new RowFingerprints();
+            }
+            
+            processFileOrDirectory();
+            parserState = ParserStates.EXTRACTING_DONE;
+        }
+        
+        if( neFilter != null && printProgress ){
+            messages.println("Skipped " + skippedNEs.get() + " NEs (" 
+                    + skippedNEBytes.get() + " bytes) not matching the NE filter.");
+        }
+        
+        if( rowFingerprints != null ){
+            duplicateRows = rowFingerprints.getDuplicateCount();
+            if( printProgress ){
+                messages.println("Dropped " + duplicateRows + " duplicate rows " 
+                        + rowFingerprints.getDuplicates() + ".");
+            }
+            rowFingerprints = null;
+        }
+        
+        closeMOPWMap();
+        
+        if( cmStoreBuilder != null ){
+            try{
+                cmStore = cmStoreBuilder.build();
+            }catch(IOException e){
+                throw new XMLStreamException(e.getMessage(), e);
+            }
+            cmStoreBuilder = null;
+        }
+        
+        if( checkpoint != null && workerFiles == null ){
+            try{
+                checkpoint.delete();
+            }catch(IOException e){
+                throw new XMLStreamException(e.getMessage(), e);
+            }
+            checkpoint = null;
+        }
     }
-
-    
-    HuaweiCMXMLParser(){}
     
     /**
-     * Parser entry point 
-     * 
-     * @since 1.0.0
-     * @version 1.1.0
+     * Parse a single NE of a file by seeking to it with the file's NE index
+     * instead of parsing the whole file. The output is written as by parse.
      * 
-     * @throws XMLStreamException
+     * @since 1.1.0
+     * @param filename Indexed file
+     * @param neId neid of the NE
+     * @param mo Managed object to extract or null for all
+     * @throws XMLStreamException If the file has no up to date index or the 
+     *         NE is not in it
      * @throws FileNotFoundException
      * @throws UnsupportedEncodingException 
      */
-    public void parse() throws XMLStreamException, FileNotFoundException, UnsupportedEncodingException {
-        //Extract parameters
-        if (parserState == ParserStates.EXTRACTING_PARAMETERS) {
-            processFileOrDirectory();
-
+    public void extractNE(String filename, String neId, String mo) 
+            throws XMLStreamException, FileNotFoundException, UnsupportedEncodingException {
+        NEIndex index;
+        try{
+            index = NEIndex.load(new File(filename), 
+                    neIndexDirectory == null ? outputDirectory : neIndexDirectory);
+        }catch(IOException e){
+            throw new XMLStreamException(e.getMessage(), e);
+        }
+        
+        List<NEIndex.Entry> entries = index.find(neId);
+        if( entries.isEmpty() ){
+            throw new XMLStreamException("NE " + neId + " is not in the index of " + filename);
+        }
+        
+        baseFileName = getFileBasename(filename);
+        writeFileFooter = false;
+        if( parserState == ParserStates.EXTRACTING_PARAMETERS ){
+            scanEntries(filename, entries);
             parserState = ParserStates.EXTRACTING_VALUES;
         }
-
-        //Extracting values
-        if (parserState == ParserStates.EXTRACTING_VALUES) {
-            processFileOrDirectory();
-            parserState = ParserStates.EXTRACTING_DONE;
+        
+        if( mo != null ){
+            moColumns.keySet().retainAll(Collections.singleton(mo));
         }
+        varDateTime = index.getDateTime();
+        scanEntries(filename, entries);
+        parserState = ParserStates.EXTRACTING_DONE;
         
         closeMOPWMap();
     }
     
+    /**
+     * Scan the NEs of a file found in its index.
+     * 
+     * @since 1.1.0
+     */
+    private void scanEntries(String filename, List<NEIndex.Entry> entries) 
+            throws XMLStreamException, FileNotFoundException {
+        for(NEIndex.Entry e : entries){
+            try{
+                new NBIXMLScanner(this, new NBIXMLScanner.MappedSource(filename)).scan(e.start, e.end);
+            }catch(FileNotFoundException ex){
+                throw ex;
+            }catch(IOException | NBIXMLScanner.FallbackException ex){
+                throw new XMLStreamException(ex.getMessage(), ex);
+            }
+        }
+    }
+    
+    /**
+     * Run a pass in the coordinator's worker processes.
+     * 
+     * @since 1.1.0
+     * @param coordinator The coordinator or null
+     * @param pass WorkerCoordinator.PARAMETERS or WorkerCoordinator.VALUES
+     */
+    private void runWorkers(WorkerCoordinator coordinator, String pass) throws XMLStreamException {
+        if( coordinator == null ){
+            return;
+        }
+        
+        try{
+            coordinator.run(pass);
+        }catch(IOException e){
+            throw new XMLStreamException(e.getMessage(), e);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new XMLStreamException("Interrupted while waiting for the workers");
+        }
+    }
+    
+    /**
+     * The files of the data source in the order of a checkpointed run.
+     * 
+     * @since 1.1.0
+     */
+    private List<File> listFiles(){
+        File source = new File(dataSource);
+        if( !source.isDirectory() ){
+            return Collections.singletonList(source);
+        }
+        
+        List<File> files = new ArrayList<File>();
+        File[] fList = source.listFiles();
+        Arrays.sort(fList);
+        for(File f : fList){
+            if( f.isFile() ){
+                files.add(f);
+            }
+        }
+        return files;
+    }
+    
+    /**
+     * Open the checkpoint in the output directory. If the parameter 
+     * extraction pass of an earlier run was completed for the same, 
+     * unchanged files its columns are loaded and the pass is skipped. 
+     * Otherwise the pass is run again, loading the columns of the files 
+     * that did not change.
+     * 
+     * @since 1.1.0
+     */
+    private void resumeCheckpoint() throws XMLStreamException {
+        try{
+            checkpoint = new Checkpoint(outputDirectory);
+            if( parserState == ParserStates.EXTRACTING_PARAMETERS 
+                    && checkpoint.hasSchema(listFiles()) ){
+                Checkpoint.Columns schema = checkpoint.loadSchema();
+                moColumns = schema.columns;
+                varDateTime = schema.dateTime;
+                parserState = ParserStates.EXTRACTING_VALUES;
+                if( printProgress ){
+                    messages.println("Resuming from the checkpoint in " + outputDirectory);
+                }
+            }
+        }catch(IOException e){
+            throw new XMLStreamException(e.getMessage(), e);
+        }
+    }
+    
     /**
      * The parser's entry point.
      * 
@@ -462,16 +1763,134 @@ public class HuaweiCMXMLParser {
     public void parseFile(String filename) 
     throws XMLStreamException, FileNotFoundException, UnsupportedEncodingException
     {
-            XMLInputFactory factory = XMLInputFactory.newInstance();
+            parseFile(filename, null);
+    }
+    
+    /**
+     * Check that the byte scanner can parse a file whose parameters were 
+     * not extracted by it in this process, as with a parameter file, a 
+     * resumed checkpoint or worker processes. The file is scanned without 
+     * writing anything so that the value extraction pass never falls back 
+     * to StAX after rows have been written.
+     * 
+     * @since 1.1.0
+     * @param filename File name
+     * @return true if the file can be scanned
+     */
+    private boolean verifyScannerSupport(String filename){
+        HuaweiCMXMLParser verifier = new HuaweiCMXMLParser();
+        verifier.copySettingsFrom(this);
+        verifier.writeFileFooter = false;
+        verifier.baseFileName = baseFileName;
+        try{
+            new NBIXMLScanner(verifier, new NBIXMLScanner.MappedSource(filename)).scan();
+        }catch(IOException | NBIXMLScanner.FallbackException e){
+            if( neIndexDirectory != null ){
+                System.err.println("WARNING: No NE index is written for " + baseFileName 
+                        + ", which is parsed with StAX: " + e.getMessage());
+            }
+            return false;
+        }
+        scannerVerifiedFiles.add(filename);
+        verifiedDateTime = verifier.varDateTime;
+        return true;
+    }
+    
+    /**
+     * Parse a file whose contents are supplied by source, for example when
+     * the file has been read ahead by the file scheduler. 
+     * 
+     * @param filename File name
+     * @param source File contents. The file is read directly when null
+     * 
+     * @since 1.1.0
+     */
+    void parseFile(String filename, NBIXMLScanner.Source source) 
+    throws XMLStreamException, FileNotFoundException, UnsupportedEncodingException
+    {
+            baseFileName = STANDARD_STREAM.equals(filename) ? "stdin" 
+                    : getFileBasename(filename);
+            
+            //A file that failed inside an NE leaves its partition open
+            if( nePartition != null ){
+                leavePartition();
+            }
+            
+            verifiedDateTime = null;
+            if( useByteScanner && !STANDARD_STREAM.equals(filename)
+                    && ( parserState == ParserStates.EXTRACTING_PARAMETERS 
+                    || scannerVerifiedFiles.contains(filename) 
+                    || verifyScannerSupport(filename) ) ){
+                try{
+                    if( source == null ){
+                        source = new NBIXMLScanner.MappedSource(filename);
+                    }
+                    NBIXMLScanner scanner = new NBIXMLScanner(this, source);
+                    NEIndex index = null;
+                    if( neIndexDirectory != null && parserState == ParserStates.EXTRACTING_VALUES ){
+                        index = new NEIndex();
+                        scanner.setNEIndex(index);
+                    }
+                    scanner.scan();
+                    scannerVerifiedFiles.add(filename);
+                    if( index != null ){
+                        index.save(new File(filename), neIndexDirectory, 
+                                verifiedDateTime != null ? verifiedDateTime : varDateTime);
+                    }
+                    return;
+                }catch(FileNotFoundException e){
+                    throw e;
+                }catch(IOException | NBIXMLScanner.FallbackException e){
+                    //The parameter extraction pass can safely be repeated 
+                    //with StAX. Rows may already have been written in the 
+                    //value extraction pass.
+                    if( parserState != ParserStates.EXTRACTING_PARAMETERS ){
+                        throw new XMLStreamException(e.getMessage(), e);
+                    }
+                    
+                    //Part of the source has been consumed
+                    source = null;
+                    
+                    //Start StAX without the NE and moi the scanner stopped 
+                    //in. The columns of the mois it finished are found 
+                    //again in the same order.
+                    clearElementState();
+                }
+            }
+            
+            if( xmlInputFactory == null ){
+                xmlInputFactory = XMLInputFactory.newInstance();
+            }
+            XMLInputFactory factory = xmlInputFactory;
 
-            XMLEventReader eventReader = factory.createXMLEventReader(
-                    new FileReader(filename));
-            baseFileName = getFileBasename(filename);
+            //Let StAX pick the encoding from the XML declaration
+            InputStream inputStream;
+            try{
+                if( source != null ){
+                    inputStream = source.newInputStream();
+                }else if( STANDARD_STREAM.equals(filename) ){
+                    inputStream = System.in;
+                }else{
+                    inputStream = new FileInputStream(filename);
+                }
+            }catch(FileNotFoundException e){
+                throw e;
+            }catch(IOException e){
+                throw new XMLStreamException(e.getMessage(), e);
+            }
+            XMLEventReader eventReader = factory.createXMLEventReader(inputStream);
 
+            try {
             while (eventReader.hasNext()) {
                 XMLEvent event = eventReader.nextEvent();
                 switch (event.getEventType()) {
                     case XMLStreamConstants.START_ELEMENT:
+                        if( neFilter != null 
+                                && event.asStartElement().getName().getLocalPart().equals("NE")
+                                && isFilteredOut(attributeMap(event.asStartElement())) ){
+                            skipElement(eventReader, event);
+                            break;
+                        }
                         startElementEvent(event);
                         break;
                     case XMLStreamConstants.SPACE:
@@ -483,83 +1902,478 @@ public class HuaweiCMXMLParser {
                         break;
                 }
             }
-
-            
+            } finally {
+                eventReader.close();
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                }
+            }
+    }
+    
+    /**
+     * Skip the events of an element filtered out by the NE filter. 
+     * 
+     * @since 1.1.0
+     * @param eventReader
+     * @param startEvent Start of the element
+     * @throws XMLStreamException 
+     */
+    private void skipElement(XMLEventReader eventReader, XMLEvent startEvent) 
+            throws XMLStreamException {
+        int start = startEvent.getLocation().getCharacterOffset();
+        int depth = 1;
+        XMLEvent event = startEvent;
+        while( depth > 0 && eventReader.hasNext() ){
+            event = eventReader.nextEvent();
+            if( event.isStartElement() ){
+                depth++;
+            }else if( event.isEndElement() ){
+                depth--;
+            }
+        }
+        
+        int end = event.getLocation().getCharacterOffset();
+        addSkippedNE(start >= 0 && end >= start ? end - start : 0);
+    }
+    
+    /**
+     * Determines if the source data file is a regular file or a directory and 
+     * parses it accordingly
+     * 
+     * @since 1.1.0
+     * @version 1.0.0
+     * @throws XMLStreamException
+     * @throws FileNotFoundException
+     * @throws UnsupportedEncodingException
+     */
+    public void processFileOrDirectory()
+            throws XMLStreamException, FileNotFoundException, UnsupportedEncodingException {
+        if( workerFiles != null ){
+            processFiles(workerFiles);
+            return;
+        }
+        
+        if( STANDARD_STREAM.equals(dataSource) ){
+            parseFile(STANDARD_STREAM);
+            return;
+        }
+        
+        //this.dataFILe;
+        Path file = Paths.get(this.dataSource);
+        boolean isRegularExecutableFile = Files.isRegularFile(file)
+                & Files.isReadable(file);
+
+        boolean isReadableDirectory = Files.isDirectory(file)
+                & Files.isReadable(file);
+
+        if (isRegularExecutableFile && ( fileSchedulerMode != null || checkpoint != null )) {
+            processFiles(Collections.singletonList(file.toFile()));
+            return;
+        }
+        
+        if (isRegularExecutableFile) {
+            this.setFileName(this.dataSource);
+            baseFileName =  getFileBasename(this.dataFile);
+            if( printProgress ){
+                if( parserState == ParserStates.EXTRACTING_PARAMETERS){
+                    messages.print("Extracting parameters from " + this.baseFileName + "...");
+                }else{
+                    messages.print("Parsing " + this.baseFileName + "...");
+                }
+            }
+            this.parseFile(this.dataSource);
+            
+            if( printProgress ){
+                messages.println("Done.");
+            }
+        }
+
+        if (isReadableDirectory) {
+
+            File directory = new File(this.dataSource);
+
+            //get all the files from a directory
+            File[] fList = directory.listFiles();
+            
+            if( checkpoint != null ){
+                //Resumed runs must see the files in the same order
+                Arrays.sort(fList);
+            }
+            
+            if( fileSchedulerMode != null || checkpoint != null ){
+                processFiles(Arrays.asList(fList));
+                return;
+            }
+
+            for (File f : fList) {
+                this.setFileName(f.getAbsolutePath());
+                try {
+                    
+                    //@TODO: Duplicate call in parseFile. Remove!
+                    baseFileName =  getFileBasename(this.dataFile);
+                    if( printProgress ){
+                        if( parserState == ParserStates.EXTRACTING_PARAMETERS){
+                            messages.print("Extracting parameters from " + this.baseFileName + "...");
+                        }else{
+                            messages.print("Parsing " + this.baseFileName + "...");
+                        }
+                    }
+                    
+                    //Parse
+                    this.parseFile(f.getAbsolutePath());
+                    if( printProgress ){
+                        messages.println("Done.");
+                    }
+                   
+                } catch (Exception e) {
+                    messages.println(e.getMessage());
+                    messages.println("Skipping file: " + this.baseFileName + "\n");
+                }
+            }
+        }
+
+    }
+    
+    /**
+     * Parse files with the file scheduler or, in checkpointed runs without 
+     * it, one after the other. Each thread has its own worker parser. 
+     * 
+     * In the parameter extraction pass each file's columns are collected 
+     * separately and merged into a ColumnSchema as soon as the file is 
+     * done, which gives the same columns as parsing the files one after the 
+     * other. With the byte scanner large files are also split into chunks 
+     * that are scanned in parallel. In the value extraction pass the 
+     * workers share the csv writers so rows from different files are 
+     * interleaved. In checkpointed runs each file is instead written to its 
+     * own segment, which is committed when the file is done.
+     * 
+     * @since 1.1.0
+     * @param files
+     */
+    private void processFiles(final List<File> files) throws XMLStreamException {
+        final HuaweiCMXMLParser parent = this;
+        final ThreadLocal<HuaweiCMXMLParser> workers = new ThreadLocal<HuaweiCMXMLParser>(){
+            @Override
+            protected HuaweiCMXMLParser initialValue() {
+                HuaweiCMXMLParser worker = new HuaweiCMXMLParser();
+                worker.copySettingsFrom(parent);
+                worker.printProgress = false;
+                worker.writeFileFooter = false;
+                worker.outputDirectory = parent.outputDirectory;
+                worker.scannerVerifiedFiles = parent.scannerVerifiedFiles;
+                worker.moiPrintWriters = parent.moiPrintWriters;
+                worker.openPartitions = parent.openPartitions;
+                worker.partitionWriters = parent.partitionWriters;
+                worker.writtenPartitions = parent.writtenPartitions;
+                worker.manifestWriter = parent.manifestWriter;
+                worker.skippedNEs = parent.skippedNEs;
+                worker.skippedNEBytes = parent.skippedNEBytes;
+                worker.cmStoreBuilder = parent.cmStoreBuilder;
+                worker.rowFingerprints = parent.rowFingerprints;
+                return worker;
+            }
+        };
+        
+        final ColumnSchema schema = new ColumnSchema();
+        final String[] fileDateTimes = new String[files.size()];
+        final String[] fileFooters = new String[files.size()];
+        final int state = parserState;
+        final ExecutorService chunkPool = state == ParserStates.EXTRACTING_PARAMETERS 
+                && useByteScanner && fileSchedulerMode != null 
+                ? Executors.newFixedThreadPool(parserThreads) : null;
+        
+        FileScheduler.FileHandler handler = new FileScheduler.FileHandler() {
+            @Override
+            public void handle(int index, File file, NBIXMLScanner.Source source) throws Exception {
+                String action = state == ParserStates.EXTRACTING_PARAMETERS 
+                        ? "Extracting parameters from " : "Parsing ";
+                
+                if( checkpoint != null && ( state == ParserStates.EXTRACTING_PARAMETERS 
+                        ? checkpoint.hasColumns(file) : checkpoint.isCommitted(file) ) ){
+                    if( state == ParserStates.EXTRACTING_PARAMETERS ){
+                        Checkpoint.Columns c = checkpoint.loadColumns(file);
+                        schema.add(index, 0, c.columns);
+                        fileDateTimes[index] = c.dateTime;
+                        fileFooters[index] = c.footer;
+                    }
+                    if( printProgress ){
+                        messages.println(action + file.getName() + "...Done earlier.");
+                    }
+                    return;
+                }
+                
+                if( chunkPool != null && file.length() >= 2 * discoveryChunkSize ){
+                    Map<String, Stack> columns = extractParametersInChunks(index, file, 
+                            chunkPool, fileDateTimes, fileFooters);
+                    if( columns != null ){
+                        schema.add(index, 0, columns);
+                        if( checkpoint != null ){
+                            checkpoint.saveColumns(file, fileDateTimes[index], 
+                                    fileFooters[index], columns);
+                        }
+                        if( printProgress ){
+                            messages.println(action + file.getName() + "...Done.");
+                        }
+                        return;
+                    }
+                }
+                
+                HuaweiCMXMLParser worker = workers.get();
+                worker.parserState = state;
+                worker.lastFileFooter = null;
+                if( state == ParserStates.EXTRACTING_PARAMETERS ){
+                    worker.moColumns = new LinkedHashMap<String, Stack>();
+                    worker.varDateTime = null;
+                }else{
+                    worker.moColumns = parent.moColumns;
+                    worker.varDateTime = parent.varDateTime;
+                }
+                
+                if( checkpoint != null && state == ParserStates.EXTRACTING_VALUES ){
+                    parseSegment(worker, file, source);
+                    if( printProgress ){
+                        messages.println(action + file.getName() + "...Done.");
+                    }
+                    return;
+                }
+                
+                try{
+                    worker.parseFile(file.getAbsolutePath(), source);
+                    if( checkpoint != null ){
+                        checkpoint.saveColumns(file, worker.varDateTime, 
+                                worker.lastFileFooter, worker.moColumns);
+                    }
+                    if( printProgress ){
+                        messages.println(action + file.getName() + "...Done.");
+                    }
+                }finally{
+                    if( state == ParserStates.EXTRACTING_PARAMETERS ){
+                        schema.add(index, 0, worker.moColumns);
+                        fileDateTimes[index] = worker.varDateTime;
+                        fileFooters[index] = worker.lastFileFooter;
+                    }
+                }
+            }
+        };
+        
+        if( fileSchedulerMode == null ){
+            for(int i = 0; i < files.size(); i++){
+                try{
+                    handler.handle(i, files.get(i), null);
+                }catch(Exception e){
+                    messages.println(e.getMessage());
+                    messages.println("Skipping file: " + files.get(i).getName() + "\n");
+                }
+            }
+        }else{
+            FileScheduler scheduler = new FileScheduler(fileSchedulerMode, parserThreads, ioThreads);
+            try{
+                scheduler.process(files, handler);
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new XMLStreamException("Interrupted while parsing " + dataSource);
+            }finally{
+                scheduler.shutdown();
+                if( chunkPool != null ){
+                    chunkPool.shutdown();
+                }
+            }
+        }
+        
+        if( workerFiles != null ){
+            //The coordinator merges the workers' checkpoints
+            return;
+        }
+        
+        if( state != ParserStates.EXTRACTING_PARAMETERS ){
+            if( checkpoint != null ){
+                try{
+                    checkpoint.assemble(files, outputDirectory, this);
+                }catch(IOException e){
+                    throw new XMLStreamException(e.getMessage(), e);
+                }
+            }
+            return;
+        }
+        
+        mergeColumns(schema.toColumns());
+        
+        String footer = null;
+        for(int i = 0; i < files.size(); i++){
+            if( fileDateTimes[i] != null ){
+                varDateTime = fileDateTimes[i];
+            }
+            if( fileFooters[i] != null ){
+                footer = fileFooters[i];
+            }
+        }
+        
+        try{
+            if( footer != null ){
+                PrintWriter pw = new PrintWriter(outputDirectory + File.separatorChar + "filefooter.csv");
+                pw.println("FileName,datetime");
+                pw.println(footer);
+                pw.close();
+            }
+            
+            if( checkpoint != null ){
+                checkpoint.saveSchema(files, varDateTime, moColumns);
+            }
+        }catch(IOException e){
+            throw new XMLStreamException(e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Parse a file's values into its own checkpoint segment with writers 
+     * of its own, and commit the segment.
+     * 
+     * @since 1.1.0
+     * @param worker Parser to use
+     * @param file The file
+     * @param source The file's contents or null
+     */
+    private void parseSegment(HuaweiCMXMLParser worker, File file, NBIXMLScanner.Source source) 
+            throws Exception {
+        worker.outputDirectory = checkpoint.beginSegment(file);
+        worker.moiPrintWriters = new LinkedHashMap<String, MOCsvWriter>();
+        worker.openPartitions = new HashMap<String, Integer>();
+        worker.partitionWriters = new HashMap<String, List<MOCsvWriter>>();
+        worker.writtenPartitions = new HashSet<String>();
+        worker.manifestWriter = null;
+        if( maxShardBytes > 0 || maxShardRows > 0 ){
+            worker.manifestWriter = new PrintWriter(worker.outputDirectory 
+                    + File.separatorChar + "manifest.csv");
+            worker.manifestWriter.println("mo,shard,file,rows,bytes");
+        }
+        
+        try{
+            worker.parseFile(file.getAbsolutePath(), source);
+            worker.closeMOPWMap();
+            checkpoint.commitSegment(file);
+        }catch(Exception e){
+            worker.closeMOPWMap();
+            checkpoint.abortSegment(file);
+            throw e;
+        }
+    }
+    
+    /**
+     * Extract the parameters of a large file by splitting it after NE end 
+     * tags and scanning the chunks in parallel. The chunks' columns are 
+     * only returned if every chunk was scanned, otherwise the file is left 
+     * to be parsed whole.
+     * 
+     * @since 1.1.0
+     * @param fileIndex Index of the file in the files being parsed
+     * @param file The file
+     * @param chunkPool Threads that scan the chunks
+     * @param fileDateTimes Date time of each file's footer
+     * @param fileFooters Footer row of each file
+     * @return The file's columns or null if the file must be parsed whole
+     * @throws InterruptedException
+     */
+    private Map<String, Stack> extractParametersInChunks(int fileIndex, File file, 
+            ExecutorService chunkPool, String[] fileDateTimes, String[] fileFooters) 
+            throws InterruptedException {
+        final HuaweiCMXMLParser parent = this;
+        final String filename = file.getAbsolutePath();
+        final NBIXMLScanner.Source source;
+        final List<Long> boundaries = new ArrayList<Long>();
+        
+        try{
+            source = new NBIXMLScanner.MappedSource(filename);
+            NBIXMLScanner scanner = new NBIXMLScanner(this, source);
+            long length = source.length();
+            long chunkSize = Math.max(discoveryChunkSize, length / ColumnSchema.MAX_CHUNKS + 1);
+            
+            boundaries.add(0L);
+            long boundary = 0;
+            while( boundary + chunkSize < length ){
+                boundary = scanner.nextChunkBoundary(boundary + chunkSize);
+                if( boundary < 0 || boundary >= length ){
+                    break;
+                }
+                boundaries.add(boundary);
+            }
+            boundaries.add(length);
+        }catch(IOException e){
+            return null;
+        }
+        
+        int chunks = boundaries.size() - 1;
+        if( chunks < 2 ){
+            return null;
+        }
+        
+        List<Future<HuaweiCMXMLParser>> results = new ArrayList<Future<HuaweiCMXMLParser>>();
+        for(int i = 0; i < chunks; i++){
+            final long start = boundaries.get(i);
+            final long end = boundaries.get(i + 1);
+            results.add(chunkPool.submit(new Callable<HuaweiCMXMLParser>(){
+                @Override
+                public HuaweiCMXMLParser call() throws Exception {
+                    //Each chunk gets its own parser to keep its results
+                    HuaweiCMXMLParser worker = new HuaweiCMXMLParser();
+                    worker.copySettingsFrom(parent);
+                    worker.writeFileFooter = false;
+                    worker.baseFileName = worker.getFileBasename(filename);
+                    new NBIXMLScanner(worker, source).scan(start, end);
+                    return worker;
+                }
+            }));
+        }
+        
+        List<HuaweiCMXMLParser> chunkParsers = new ArrayList<HuaweiCMXMLParser>();
+        boolean scanned = true;
+        for(Future<HuaweiCMXMLParser> result : results){
+            try{
+                chunkParsers.add(result.get());
+            }catch(ExecutionException e){
+                scanned = false;
+            }
+        }
+        
+        if( !scanned ){
+            return null;
+        }
+        
+        ColumnSchema schema = new ColumnSchema();
+        for(int i = 0; i < chunks; i++){
+            HuaweiCMXMLParser chunkParser = chunkParsers.get(i);
+            schema.add(0, i, chunkParser.moColumns);
+            if( chunkParser.varDateTime != null ){
+                fileDateTimes[fileIndex] = chunkParser.varDateTime;
+            }
+            if( chunkParser.lastFileFooter != null ){
+                fileFooters[fileIndex] = chunkParser.lastFileFooter;
+            }
+        }
+        scannerVerifiedFiles.add(filename);
+        return schema.toColumns();
     }
     
     /**
-     * Determines if the source data file is a regular file or a directory and 
-     * parses it accordingly
+     * Append the columns that are not yet known for each managed object.
      * 
      * @since 1.1.0
-     * @version 1.0.0
-     * @throws XMLStreamException
-     * @throws FileNotFoundException
-     * @throws UnsupportedEncodingException
+     * @param columns Columns of each managed object in the order found
      */
-    public void processFileOrDirectory()
-            throws XMLStreamException, FileNotFoundException, UnsupportedEncodingException {
-        //this.dataFILe;
-        Path file = Paths.get(this.dataSource);
-        boolean isRegularExecutableFile = Files.isRegularFile(file)
-                & Files.isReadable(file);
-
-        boolean isReadableDirectory = Files.isDirectory(file)
-                & Files.isReadable(file);
-
-        if (isRegularExecutableFile) {
-            this.setFileName(this.dataSource);
-            baseFileName =  getFileBasename(this.dataFile);
-            if( parserState == ParserStates.EXTRACTING_PARAMETERS){
-                System.out.print("Extracting parameters from " + this.baseFileName + "...");
-            }else{
-                System.out.print("Parsing " + this.baseFileName + "...");
+    void mergeColumns(Map<String, Stack> columns){
+        for(Map.Entry<String, Stack> me : columns.entrySet()){
+            Stack known = moColumns.get(me.getKey());
+            if( known == null ){
+                known = new Stack();
+                moColumns.put(me.getKey(), known);
             }
-            this.parseFile(this.dataSource);
             
-            if( parserState == ParserStates.EXTRACTING_PARAMETERS){
-                 System.out.println("Done.");
-            }else{
-                System.out.println("Done.");
-                //System.out.println(this.baseFileName + " successfully parsed.\n");
-            }
-        }
-
-        if (isReadableDirectory) {
-
-            File directory = new File(this.dataSource);
-
-            //get all the files from a directory
-            File[] fList = directory.listFiles();
-
-            for (File f : fList) {
-                this.setFileName(f.getAbsolutePath());
-                try {
-                    
-                    //@TODO: Duplicate call in parseFile. Remove!
-                    baseFileName =  getFileBasename(this.dataFile);
-                    if( parserState == ParserStates.EXTRACTING_PARAMETERS){
-                        System.out.print("Extracting parameters from " + this.baseFileName + "...");
-                    }else{
-                        System.out.print("Parsing " + this.baseFileName + "...");
-                    }
-                    
-                    //Parse
-                    this.parseFile(f.getAbsolutePath());
-                    if( parserState == ParserStates.EXTRACTING_PARAMETERS){
-                         System.out.println("Done.");
-                    }else{
-                        System.out.println("Done.");
-                        //System.out.println(this.baseFileName + " successfully parsed.\n");
-                    }
-                   
-                } catch (Exception e) {
-                    System.out.println(e.getMessage());
-                    System.out.println("Skipping file: " + this.baseFileName + "\n");
+            for(Object column : me.getValue()){
+                if( !known.contains(column) ){
+                    known.push(column);
                 }
             }
         }
-
     }
     
     /**
@@ -568,27 +2382,68 @@ public class HuaweiCMXMLParser {
      * @param xmlEvent
      *
      * @since 1.0.0
-     * @version 1.0.0
+     * @version 1.1.0
      *
      */
     public void startElementEvent(XMLEvent xmlEvent) throws FileNotFoundException {
         StartElement startElement = xmlEvent.asStartElement();
         String qName = startElement.getName().getLocalPart();
-        String prefix = startElement.getName().getPrefix();
-        
+        startElement(qName, attributeMap(startElement));
+    }
+    
+    /**
+     * Attributes of a start element by local name.
+     * 
+     * @since 1.1.0
+     */
+    private static Map<String, String> attributeMap(StartElement startElement){
         Iterator<Attribute> attributes = startElement.getAttributes();
+        if(!attributes.hasNext()){
+            return Collections.<String, String>emptyMap();
+        }
         
+        Map<String, String> attributeMap = new LinkedHashMap<String, String>();
+        while (attributes.hasNext()) {
+            Attribute attribute = attributes.next();
+            attributeMap.put(attribute.getName().getLocalPart(), attribute.getValue());
+        }
+        return attributeMap;
+    }
+    
+    /**
+     * Handle the start of an element. This is shared by the StAX and byte 
+     * scanner engines.
+     *
+     * @param qName Local name of the element
+     * @param attributes Attribute local names and values
+     *
+     * @since 1.1.0
+     */
+    void startElement(String qName, Map<String, String> attributes) throws FileNotFoundException {
+        tagData = "";
 
         //Handle start of <footer ...>
-        if(qName.equals("filefooter") && parserState == ParserStates.EXTRACTING_PARAMETERS){
+        if(qName.equals("filefooter") 
+                && ( parserState == ParserStates.EXTRACTING_PARAMETERS || growColumns )){
             String datetime = "";
-            while (attributes.hasNext()) {
-                Attribute attribute = attributes.next();
-                if (attribute.getName().getLocalPart().equals("datetime")) {
-                    datetime = attribute.getValue();
-                    varDateTime = datetime;
+            if (attributes.containsKey("datetime")) {
+                datetime = attributes.get("datetime");
+                varDateTime = datetime;
+            }
+            
+            if( !writeFileFooter ){
+                lastFileFooter = baseFileName+","+datetime;
+                return;
+            }
+            
+            if( streamWriter != null ){
+                MOCsvWriter pw = getMOWriter("filefooter");
+                if( pw == null ){
+                    pw = createMOWriter("filefooter", "FileName,datetime", null);
                 }
-            }            
+                pw.println(baseFileName+","+datetime);
+                return;
+            }
             
             String f = outputDirectory + File.separatorChar + "filefooter.csv";
             PrintWriter pw = new PrintWriter(f);
@@ -602,11 +2457,8 @@ public class HuaweiCMXMLParser {
         if(qName.equals("moi")){
             inMoi = true;
 
-            while (attributes.hasNext()) {
-                Attribute attribute = attributes.next();
-                if (attribute.getName().getLocalPart().equals("type")) {
-                    this.moiXSIType = attribute.getValue();
-                }
+            if (attributes.containsKey("type")) {
+                this.moiXSIType = attributes.get("type");
             }
             return;
         }        
@@ -620,19 +2472,16 @@ public class HuaweiCMXMLParser {
         //Handle start of <module ...>
         if(qName.equals("module")){
             
-            while (attributes.hasNext()) {
-                Attribute attribute = attributes.next();
-                if (attribute.getName().getLocalPart().equals("type")) {
-                    this.moduleXSIType = attribute.getValue();
-                }
-                
-                if (attribute.getName().getLocalPart().equals("productversion")) {
-                    this.moduleProductVersion = attribute.getValue();
-                }
-                
-                if (attribute.getName().getLocalPart().equals("remark")) {
-                    this.moduleRemark = attribute.getValue();
-                }
+            if (attributes.containsKey("type")) {
+                this.moduleXSIType = attributes.get("type");
+            }
+
+            if (attributes.containsKey("productversion")) {
+                this.moduleProductVersion = attributes.get("productversion");
+            }
+
+            if (attributes.containsKey("remark")) {
+                this.moduleRemark = attributes.get("remark");
             }
             
             return;
@@ -641,24 +2490,24 @@ public class HuaweiCMXMLParser {
         //Handle start of 
         //<NE xsi:type="SRAN" netype="NodeB" neversion="XXX" neid="XXX">
         if(qName.equals("NE")){
-            while (attributes.hasNext()) {
-                Attribute attribute = attributes.next();
-                if (attribute.getName().getLocalPart().equals("type")) {
-                    this.neXSIType = attribute.getValue();
-                }
-                
-                if (attribute.getName().getLocalPart().equals("netype")) {
-                    this.neType = attribute.getValue();
-                }
-                
-                if (attribute.getName().getLocalPart().equals("neversion")) {
-                    this.neVersion = attribute.getValue();
-                }
+            if (attributes.containsKey("type")) {
+                this.neXSIType = attributes.get("type");
+            }
 
-                if (attribute.getName().getLocalPart().equals("neid")) {
-                    this.neId = attribute.getValue();
-                }
-                
+            if (attributes.containsKey("netype")) {
+                this.neType = attributes.get("netype");
+            }
+
+            if (attributes.containsKey("neversion")) {
+                this.neVersion = attributes.get("neversion");
+            }
+
+            if (attributes.containsKey("neid")) {
+                this.neId = attributes.get("neid");
+            }
+            
+            if( partitionBy != null && parserState == ParserStates.EXTRACTING_VALUES ){
+                enterPartition();
             }
             
             return;            
@@ -670,8 +2519,19 @@ public class HuaweiCMXMLParser {
     public void endELementEvent(XMLEvent xmlEvent)
             throws FileNotFoundException, UnsupportedEncodingException {
         EndElement endElement = xmlEvent.asEndElement();
-        String prefix = endElement.getName().getPrefix();
-        String qName = endElement.getName().getLocalPart();
+        endElement(endElement.getName().getLocalPart());
+    }
+    
+    /**
+     * Handle the end of an element. This is shared by the StAX and byte 
+     * scanner engines.
+     *
+     * @param qName Local name of the element
+     *
+     * @since 1.1.0
+     */
+    void endElement(String qName)
+            throws FileNotFoundException, UnsupportedEncodingException {
         
         String paramNames = "FileName,varDateTime,ne_xsitype,netype,neversion,neid,"
                 + "module_type,module_remark, module_productversion";
@@ -679,15 +2539,24 @@ public class HuaweiCMXMLParser {
                 +","+neId + "," + moduleXSIType + "," + moduleRemark + "," + moduleProductVersion;
         
         //Handle </NE>
+        //The NE row is written once, in the value extraction pass.
         if(qName.equals("NE")){
-            if(!moiPrintWriters.containsKey("SUBSESSION_NE")){
-                String moiFile = outputDirectory + File.separatorChar + "SUBSESSION_NE.csv";
-                 moiPrintWriters.put("SUBSESSION_NE", new PrintWriter(moiFile));
-                 moiPrintWriters.get("SUBSESSION_NE").println(paramNames);
+            if(parserState != ParserStates.EXTRACTING_VALUES){
+                return;
+            }
+            
+            if( !isDuplicate("SUBSESSION_NE", paramValues) ){
+                MOCsvWriter pw = getMOWriter("SUBSESSION_NE");
+                if( pw == null ){
+                    pw = createMOWriter("SUBSESSION_NE", paramNames, null);
+                }
+
+                pw.println(paramValues);
             }
             
-            PrintWriter pw = moiPrintWriters.get("SUBSESSION_NE");
-            pw.println(paramValues);
+            if( nePartition != null ){
+                leavePartition();
+            }
             return;
         }
         
@@ -703,7 +2572,8 @@ public class HuaweiCMXMLParser {
                         
             
             //Extract parameters
-            if( parserState == ParserStates.EXTRACTING_PARAMETERS){
+            boolean newColumns = false;
+            if( parserState == ParserStates.EXTRACTING_PARAMETERS || growColumns ){
                 Stack columns = new Stack();
                 if( ! moColumns.containsKey(moiXSIType) ){
                     moColumns.put(moiXSIType, columns);
@@ -716,26 +2586,14 @@ public class HuaweiCMXMLParser {
                     Map.Entry<String, String> me = iter.next();
                     if( ! columns.contains(me.getKey())){
                         columns.push(me.getKey());
+                        newColumns = true;
                     }       
                 }
             }
         
-            if(parserState == ParserStates.EXTRACTING_VALUES){
-                //check if print writer doesn't exists and create it
-                if(!moiPrintWriters.containsKey(moiXSIType)){
-                    String moiFile = outputDirectory + File.separatorChar + moiXSIType +  ".csv";
-                     moiPrintWriters.put(moiXSIType, new PrintWriter(moiFile));
-
-                    String pName = paramNames;
-                    Stack columns = moColumns.get(moiXSIType);
-                    for(int i =0; i < columns.size(); i++){
-                        pName += "," + columns.get(i);
-                    }
-                    
-                    moiPrintWriters.get(moiXSIType).println(pName);
-
-                }
-
+            //Skip managed objects that are not in the parameter file
+            if(parserState == ParserStates.EXTRACTING_VALUES 
+                    && moColumns.containsKey(moiXSIType)){
                 Stack moiAttributes = moColumns.get(moiXSIType);
                 for(int i = 0; i< moiAttributes.size(); i++){
                     String moiName = moiAttributes.get(i).toString();
@@ -747,10 +2605,42 @@ public class HuaweiCMXMLParser {
                     }   
                 }
 
-                PrintWriter pw = moiPrintWriters.get(moiXSIType);
+                if( isDuplicate(moiXSIType, paramValues) ){
+                    moiParameterValueMap.clear();
+                    inMoi = false;
+                    return;
+                }
+                
+                //check if print writer doesn't exists and create it
+                String writerName = nePartition == null ? moiXSIType 
+                        : moiXSIType + "/" + nePartition;
+                MOCsvWriter pw = getMOWriter(writerName);
+                if( pw == null || newColumns ){
+                    String pName = paramNames;
+                    Stack columns = moColumns.get(moiXSIType);
+                    for(int i =0; i < columns.size(); i++){
+                        pName += "," + columns.get(i);
+                    }
+                    
+                    if( pw == null ){
+                        pw = createMOWriter(writerName, pName, nePartition);
+                    }else{
+                        pw.setHeader(pName);
+                    }
+                }
+
                 pw.println(paramValues);
 
-                
+                if( cmStoreBuilder != null ){
+                    Map<String, String> values = new LinkedHashMap<String, String>();
+                    for(int i = 0; i< moiAttributes.size(); i++){
+                        String moiName = moiAttributes.get(i).toString();
+                        if( moiParameterValueMap.containsKey(moiName) ){
+                            values.put(moiName, fromCSVFormat(moiParameterValueMap.get(moiName)));
+                        }
+                    }
+                    cmStoreBuilder.addRow(moiXSIType, neId, values);
+                }
             }
 
             moiParameterValueMap.clear();
@@ -766,24 +2656,120 @@ public class HuaweiCMXMLParser {
         
         //Handle </param>
         if(inMoi == true){
-            moiParameterValueMap.put(qName, toCSVFormat(tagData));
+            String value = isWhiteSpace(tagData) ? "" : tagData;
+            moiParameterValueMap.put(qName, toCSVFormat(value));
+            
+            if( expandSwitches ){
+                String[] switches = switchExpander.expand(qName, value);
+                for(int i = 0; switches != null && i < switches.length; i += 2){
+                    moiParameterValueMap.put(switches[i], switches[i + 1]);
+                }
+            }
         }
         
     }
     
+    /**
+     * Whether a row was already written, ignoring its file name and date 
+     * time. Always false unless deduplicating.
+     * 
+     * @since 1.1.0
+     * @param mo Managed object
+     * @param row The row
+     */
+    private boolean isDuplicate(String mo, String row){
+        if( rowFingerprints == null ){
+            return false;
+        }
+        int prefixLength = (baseFileName + "," + varDateTime + ",").length();
+        return !rowFingerprints.add(mo, row.substring(prefixLength));
+    }
+    
+    /**
+     * Get the csv writer of a managed object. 
+     * 
+     * @since 1.1.0
+     * @param name
+     * @return The writer or null if it has not been created yet
+     */
+    private MOCsvWriter getMOWriter(String name){
+        synchronized(moiPrintWriters){
+            return moiPrintWriters.get(name);
+        }
+    }
+    
+    /**
+     * Create the csv writer of a managed object. The writers are shared by 
+     * the file scheduler's workers so another worker may have created it 
+     * already.
+     * 
+     * @since 1.1.0
+     * @param name
+     * @param header
+     * @param partition NE partition the writer belongs to or null
+     * @return The writer
+     */
+    private MOCsvWriter createMOWriter(String name, String header, String partition) 
+            throws FileNotFoundException {
+        synchronized(moiPrintWriters){
+            MOCsvWriter pw = moiPrintWriters.get(name);
+            if( pw == null && streamWriter != null ){
+                pw = new MOCsvWriter(streamWriter, name, header);
+                moiPrintWriters.put(name, pw);
+            }
+            if( pw == null ){
+                boolean append = partition != null && writtenPartitions.contains(partition);
+                pw = new MOCsvWriter(outputDirectory, name, header, 
+                        maxShardBytes, maxShardRows, append);
+                moiPrintWriters.put(name, pw);
+                
+                if( partition != null ){
+                    List<MOCsvWriter> writers = partitionWriters.get(partition);
+                    if( writers == null ){
+                        writers = new ArrayList<MOCsvWriter>();
+                        partitionWriters.put(partition, writers);
+                    }
+                    writers.add(pw);
+                }
+            }
+            return pw;
+        }
+    }
+    
     /**
      * Handle character events.
      *
      * @param xmlEvent
-     * @version 1.0.0
+     * @version 1.1.0
      * @since 1.0.0
      */
     public void characterEvent(XMLEvent xmlEvent) {
-        Characters characters = xmlEvent.asCharacters();
-        if(!characters.isWhiteSpace()){
-            tagData = characters.getData(); 
+        characters(xmlEvent.asCharacters().getData());
+    }
+    
+    /**
+     * Collect element text. StAX reports the text around entity references 
+     * as separate events so the pieces are joined until the next start tag.
+     *
+     * @param data
+     * @since 1.1.0
+     */
+    void characters(String data) {
+        tagData = tagData.isEmpty() ? data : tagData + data;
+    }
+    
+    /**
+     * Check whether a string only contains XML white space.
+     * 
+     * @since 1.1.0
+     */
+    private static boolean isWhiteSpace(String s){
+        for(int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+            if(c != ' ' && c != '\t' && c != '\n' && c != '\r') return false;
         }
-    }    
+        return true;
+    }
     
     /**
      * Get file base name.
@@ -838,22 +2824,129 @@ public class HuaweiCMXMLParser {
         }
 
         
-        System.out.println(s);
+        messages.println(s);
     }
     
     /**
-     * Close file print writers.
+     * Close file print writers. When the output is sharded, a manifest 
+     * listing the shards is written.
      *
      * @since 1.0.0
-     * @version 1.0.0
+     * @version 1.1.0
      */
-    public void closeMOPWMap() {
-        Iterator<Map.Entry<String, PrintWriter>> iter
+    public void closeMOPWMap() throws FileNotFoundException {
+        Iterator<Map.Entry<String, MOCsvWriter>> iter
                 = moiPrintWriters.entrySet().iterator();
         while (iter.hasNext()) {
-            iter.next().getValue().close();
+            MOCsvWriter writer = iter.next().getValue();
+            writer.close();
+            addToShardManifest(writer);
         }
         moiPrintWriters.clear();
+        
+        if( manifestWriter != null ){
+            manifestWriter.close();
+            manifestWriter = null;
+        }
+        
+        openPartitions.clear();
+        partitionWriters.clear();
+        writtenPartitions.clear();
+        
+        if( streamWriter != null ){
+            streamWriter.flush();
+        }
+    }
+    
+    /**
+     * Add the shards of a closed writer to manifest.csv so that loaders can 
+     * ingest them in parallel.
+     * 
+     * @since 1.1.0
+     */
+    private void addToShardManifest(MOCsvWriter writer){
+        if( manifestWriter == null ){
+            return;
+        }
+        
+        for(MOCsvWriter.Shard shard : writer.getShards()){
+            addToShardManifest(writer.getName(), shard.number, shard.fileName, 
+                    shard.rows, shard.bytes);
+        }
+    }
+    
+    /**
+     * Add a shard to manifest.csv.
+     * 
+     * @since 1.1.0
+     */
+    void addToShardManifest(String name, int number, String fileName, long rows, long bytes){
+        if( manifestWriter == null ){
+            return;
+        }
+        
+        manifestWriter.println(toCSVFormat(name) + "," + number + "," 
+                + toCSVFormat(fileName) + "," + rows + "," + bytes);
+    }
+    
+    /**
+     * Start writing the current NE's partition. Called when the NE tag 
+     * starts in the value extraction pass.
+     * 
+     * @since 1.1.0
+     */
+    private void enterPartition(){
+        String partition = "neid=" + toPartitionValue(neId);
+        if( partitionBy.equals(PARTITION_BY_NETYPE) ){
+            partition = "netype=" + toPartitionValue(neType) + "/" + partition;
+        }
+        nePartition = partition;
+        
+        synchronized(moiPrintWriters){
+            Integer workers = openPartitions.get(partition);
+            openPartitions.put(partition, workers == null ? 1 : workers + 1);
+        }
+    }
+    
+    /**
+     * Close the current NE partition's writers once no worker is writing 
+     * to it.
+     * 
+     * @since 1.1.0
+     */
+    private void leavePartition(){
+        String partition = nePartition;
+        nePartition = null;
+        
+        synchronized(moiPrintWriters){
+            int workers = openPartitions.get(partition) - 1;
+            if( workers > 0 ){
+                openPartitions.put(partition, workers);
+                return;
+            }
+            openPartitions.remove(partition);
+            writtenPartitions.add(partition);
+            
+            List<MOCsvWriter> writers = partitionWriters.remove(partition);
+            if( writers == null ){
+                return;
+            }
+            for(MOCsvWriter writer : writers){
+                writer.close();
+                moiPrintWriters.remove(writer.getName());
+                addToShardManifest(writer);
+            }
+        }
+    }
+    
+    /**
+     * Make an attribute value safe for use in a partition directory name.
+     * 
+     * @since 1.1.0
+     */
+    static String toPartitionValue(String value){
+        String v = value.replaceAll("[^A-Za-z0-9._-]", "_");
+        return v.isEmpty() ? "_" : v;
     }
     
     /**
@@ -878,6 +2971,20 @@ public class HuaweiCMXMLParser {
         return csvValue;
     }
     
+    /**
+     * Undo toCSVFormat.
+     * 
+     * @since 1.1.0
+     * @param csvValue
+     * @return The original value
+     */
+    static String fromCSVFormat(String csvValue) {
+        if (csvValue.length() > 1 && csvValue.startsWith("\"") && csvValue.endsWith("\"")) {
+            return csvValue.substring(1, csvValue.length() - 1).replace("\"\"", "\"");
+        }
+        return csvValue;
+    }
+    
     /**
      * Set the output directory.
      * 
@@ -0,0 +1,306 @@
+/*
+ * Watches a directory and parses Huawei NBI XML files as they arrive.
+ *
+ * @see http://github.com/bodastage/boda-huaweicmxmlparser
+ */
+package com.bodastage.boda_huaweicmxmlparser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long running mode that keeps the JVM and a pool of parsers warm.
+ *
+ * New files in the input directory are parsed once their size and
+ * modification time have not changed for the settle time. Each file is
+ * parsed into a hidden temporary directory which is then renamed to
+ * &lt;output directory&gt;/&lt;file name&gt; so that readers never see partial
+ * output.
+ *
+ * @since 1.1.0
+ * @author Bodastage<info@bodastage.com>
+ */
+final class HuaweiCMXMLWatcher {
+
+    /**
+     * How often pending files are checked, in milliseconds.
+     *
+     * @since 1.1.0
+     */
+    private static final long POLL_INTERVAL = 500;
+
+    private final HuaweiCMXMLParser settings;
+
+    private final Path inputDirectory;
+
+    private final Path outputDirectory;
+
+    private final long settleMillis;
+
+    private final ExecutorService pool;
+
+    /**
+     * One parser per pool thread. Parsers are reset and reused for every file.
+     */
+    private final ThreadLocal<HuaweiCMXMLParser> parsers
+            = new ThreadLocal<HuaweiCMXMLParser>(){
+        @Override
+        protected HuaweiCMXMLParser initialValue() {
+            HuaweiCMXMLParser parser = new HuaweiCMXMLParser();
+            parser.copySettingsFrom(settings);
+            parser.setPrintProgress(false);
+            return parser;
+        }
+    };
+
+    /**
+     * Files waiting to settle: {size, last modified, time of last change}.
+     */
+    final Map<Path, long[]> pending = new LinkedHashMap<Path, long[]>();
+
+    /**
+     * Last modified time of the version of each file that has been parsed.
+     */
+    private final Map<Path, Long> processed = new ConcurrentHashMap<Path, Long>();
+
+    /**
+     * Files being parsed. Only added to by the watching thread.
+     */
+    final Set<Path> inProgress = ConcurrentHashMap.<Path>newKeySet();
+
+    /**
+     * @param settings Parser whose settings are used for every file
+     * @param inputDirectory Directory to watch
+     * @param outputDirectory Directory under which each file's output is written
+     * @param threads Number of files parsed at the same time
+     * @param settleSeconds Time a file must remain unchanged before it is parsed
+     */
+    HuaweiCMXMLWatcher(HuaweiCMXMLParser settings, String inputDirectory,
+            String outputDirectory, int threads, long settleSeconds){
+        this.settings = settings;
+        this.inputDirectory = Paths.get(inputDirectory).toAbsolutePath();
+        this.outputDirectory = Paths.get(outputDirectory).toAbsolutePath();
+        this.settleMillis = settleSeconds * 1000;
+        this.pool = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Watch the input directory until the process is stopped.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void run() throws IOException, InterruptedException {
+        WatchService watchService = FileSystems.getDefault().newWatchService();
+        inputDirectory.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(){
+            @Override
+            public void run() {
+                try {
+                    shutdown();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+
+        System.out.println("Watching " + inputDirectory + "...");
+
+        //Files that were already there
+        addDirectoryFiles();
+
+        while(true){
+            WatchKey key = watchService.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            if(key != null){
+                for(WatchEvent<?> event : key.pollEvents()){
+                    if(event.kind() == StandardWatchEventKinds.OVERFLOW){
+                        addDirectoryFiles();
+                        continue;
+                    }
+                    addFile(inputDirectory.resolve((Path) event.context()));
+                }
+
+                if(!key.reset()){
+                    System.err.println("ERROR: " + inputDirectory + " is no longer accessible.");
+                    break;
+                }
+            }
+
+            submitSettledFiles();
+        }
+
+        pool.shutdown();
+    }
+
+    /**
+     * Stop taking files and wait up to a minute for the files being parsed.
+     *
+     * @throws InterruptedException
+     */
+    void shutdown() throws InterruptedException {
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Track the files of the input directory.
+     *
+     * @throws IOException
+     */
+    void addDirectoryFiles() throws IOException {
+        DirectoryStream<Path> stream = Files.newDirectoryStream(inputDirectory);
+        try{
+            for(Path f : stream){
+                addFile(f);
+            }
+        }finally{
+            stream.close();
+        }
+    }
+
+    /**
+     * Track a new or changed file until it settles.
+     */
+    private void addFile(Path f){
+        String name = f.getFileName().toString();
+
+        //Skip hidden files and files still being transferred
+        if(name.startsWith(".") || name.endsWith(".tmp") || name.endsWith(".part")
+                || name.endsWith(".filepart")){
+            return;
+        }
+
+        if(!Files.isRegularFile(f) || pending.containsKey(f)){
+            return;
+        }
+
+        pending.put(f, new long[]{-1, -1, System.currentTimeMillis()});
+    }
+
+    /**
+     * Hand files whose size and modification time are stable to the pool.
+     */
+    void submitSettledFiles(){
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, long[]>> iter = pending.entrySet().iterator();
+
+        while(iter.hasNext()){
+            Map.Entry<Path, long[]> me = iter.next();
+            final Path f = me.getKey();
+            long[] state = me.getValue();
+
+            File file = f.toFile();
+            if(!file.isFile()){
+                iter.remove();
+                continue;
+            }
+
+            long size = file.length();
+            final long modified = file.lastModified();
+            if(size != state[0] || modified != state[1]){
+                state[0] = size;
+                state[1] = modified;
+                state[2] = now;
+                continue;
+            }
+
+            if(now - state[2] < settleMillis){
+                continue;
+            }
+
+            if(inProgress.contains(f)){
+                //An earlier version is still being parsed. Keep the file
+                //pending and compare with the parsed version once it is done.
+                continue;
+            }
+
+            iter.remove();
+            Long processedVersion = processed.get(f);
+            if(processedVersion != null && processedVersion == modified){
+                continue;
+            }
+
+            inProgress.add(f);
+            pool.submit(new Runnable(){
+                @Override
+                public void run() {
+                    parse(f, modified);
+                }
+            });
+        }
+    }
+
+    /**
+     * Parse one file into a temporary directory and publish it.
+     */
+    private void parse(Path f, long modified){
+        String name = f.getFileName().toString();
+        Path target = outputDirectory.resolve(name);
+        Path temp = outputDirectory.resolve("." + name + ".tmp");
+        long start = System.currentTimeMillis();
+
+        try{
+            FileUtils.deleteRecursively(temp);
+            Files.createDirectories(temp);
+
+            HuaweiCMXMLParser parser = parsers.get();
+            parser.reset();
+            parser.setDataSource(f.toString());
+            parser.setOutputDirectory(temp.toString());
+            parser.parse();
+
+            publish(temp, target);
+            System.out.println("Parsed " + name + " in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        }catch(Exception e){
+            System.out.println(e.getMessage());
+            System.out.println("Skipping file: " + name + "\n");
+            try{
+                FileUtils.deleteRecursively(temp);
+            }catch(IOException ex){
+            }
+        }finally{
+            processed.put(f, modified);
+            inProgress.remove(f);
+        }
+    }
+
+    /**
+     * Move the temporary output into place. An earlier output of the same
+     * file is swapped out with a second rename before it is deleted.
+     */
+    private void publish(Path temp, Path target) throws IOException {
+        Path old = null;
+        if(Files.exists(target)){
+            old = target.resolveSibling("." + target.getFileName() + ".old");
+            FileUtils.deleteRecursively(old);
+            Files.move(target, old, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+
+        if(old != null){
+            FileUtils.deleteRecursively(old);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * CSV writer for a managed object type.
+ *
+ * @see http://github.com/bodastage/boda-huaweicmxmlparser
+ */
+package com.bodastage.boda_huaweicmxmlparser;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the csv rows of one managed object type.
+ *
+ * Without a shard limit all rows go to &lt;name&gt;.csv. With a limit the rows
+ * are rolled into &lt;name&gt;_00001.csv, &lt;name&gt;_00002.csv,... each starting
+ * with the header. The byte limit is checked after every row against the
+ * bytes handed to the file so a shard may exceed it by the writer's buffer.
+ *
+ * The name may contain '/' to write into sub directories, which are created
+ * as needed. In append mode rows are added to an existing file, or to new
+ * shards numbered after the existing ones.
+ *
+ * A writer can instead share a stream with the writers of other managed
+ * objects. Each row is then prefixed with the writer's name and each header
+ * with # and the name.
+ *
+ * @since 1.1.0
+ * @author Bodastage<info@bodastage.com>
+ */
+final class MOCsvWriter {
+
+    /**
+     * A completed or open shard.
+     *
+     * @since 1.1.0
+     */
+    static final class Shard {
+        final int number;
+        final String fileName;
+        long rows = 0;
+        long bytes = 0;
+
+        Shard(int number, String fileName){
+            this.number = number;
+            this.fileName = fileName;
+        }
+    }
+
+    /**
+     * Counts the bytes written to the underlying stream.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out){
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private final String outputDirectory;
+
+    private final String name;
+
+    private String header;
+
+    /**
+     * Shard limits. 0 means no limit.
+     */
+    private final long maxShardBytes;
+
+    private final long maxShardRows;
+
+    /**
+     * Stream shared with other writers. null when writing to files.
+     */
+    private final PrintWriter stream;
+
+    private final List<Shard> shards = new ArrayList<Shard>();
+
+    private PrintWriter printWriter;
+
+    private CountingOutputStream countingStream;
+
+    private Shard shard;
+
+    /**
+     * Number of the next shard.
+     */
+    private int nextShard = 1;
+
+    /**
+     * @param outputDirectory Output directory
+     * @param name File name without the .csv extension
+     * @param header Header row
+     * @param maxShardBytes Roll to a new shard after this many bytes. 0 for no limit
+     * @param maxShardRows Roll to a new shard after this many rows. 0 for no limit
+     * @throws FileNotFoundException
+     */
+    MOCsvWriter(String outputDirectory, String name, String header,
+            long maxShardBytes, long maxShardRows) throws FileNotFoundException {
+        this(outputDirectory, name, header, maxShardBytes, maxShardRows, false);
+    }
+
+    /**
+     * @param outputDirectory Output directory
+     * @param name File name without the .csv extension
+     * @param header Header row
+     * @param maxShardBytes Roll to a new shard after this many bytes. 0 for no limit
+     * @param maxShardRows Roll to a new shard after this many rows. 0 for no limit
+     * @param append Add to the existing output instead of replacing it
+     * @throws FileNotFoundException
+     */
+    MOCsvWriter(String outputDirectory, String name, String header,
+            long maxShardBytes, long maxShardRows, boolean append) throws FileNotFoundException {
+        this.outputDirectory = outputDirectory;
+        this.name = name;
+        this.header = header;
+        this.maxShardBytes = maxShardBytes;
+        this.maxShardRows = maxShardRows;
+        this.stream = null;
+
+        File parent = new File(outputDirectory, name).getParentFile();
+        if(!parent.isDirectory()){
+            parent.mkdirs();
+        }
+
+        if(append && isSharded()){
+            while(new File(outputDirectory, shardFileName(nextShard)).exists()){
+                nextShard++;
+            }
+        }
+
+        openShard(append && !isSharded());
+    }
+
+    /**
+     * Write to a stream shared with other writers.
+     *
+     * @since 1.1.0
+     * @param stream The stream
+     * @param name Managed object tag of the rows
+     * @param header Header row
+     */
+    MOCsvWriter(PrintWriter stream, String name, String header){
+        this.outputDirectory = null;
+        this.name = name;
+        this.header = header;
+        this.maxShardBytes = 0;
+        this.maxShardRows = 0;
+        this.stream = stream;
+        stream.println("#" + name + "," + header);
+    }
+
+    /**
+     * Change the header of a writer sharing a stream. The new header is
+     * written before the next rows.
+     *
+     * @since 1.1.0
+     * @param header Header row
+     */
+    synchronized void setHeader(String header){
+        if(stream != null && !header.equals(this.header)){
+            this.header = header;
+            stream.println("#" + name + "," + header);
+        }
+    }
+
+    boolean isSharded(){
+        return maxShardBytes > 0 || maxShardRows > 0;
+    }
+
+    /**
+     * Write a row, rolling to a new shard when the current one is full.
+     *
+     * @param row
+     * @throws FileNotFoundException
+     */
+    synchronized void println(String row) throws FileNotFoundException {
+        if(stream != null){
+            stream.println(name + "," + row);
+            return;
+        }
+        if( shard.rows > 0 && (
+                ( maxShardRows > 0 && shard.rows >= maxShardRows ) ||
+                ( maxShardBytes > 0 && countingStream.count >= maxShardBytes ) ) ){
+            closeShard();
+            openShard(false);
+        }
+
+        printWriter.println(row);
+        shard.rows++;
+    }
+
+    /**
+     * Close the current shard.
+     */
+    synchronized void close(){
+        if(stream != null) stream.flush();
+        if(printWriter != null) closeShard();
+    }
+
+    List<Shard> getShards(){
+        return shards;
+    }
+
+    String getName(){
+        return name;
+    }
+
+    private String shardFileName(int number){
+        return isSharded() ? shardFileName(name, number) : name + ".csv";
+    }
+
+    /**
+     * File name of a shard.
+     *
+     * @param name Writer name
+     * @param number Shard number starting at 1
+     */
+    static String shardFileName(String name, int number){
+        return String.format("%s_%05d.csv", name, number);
+    }
+
+    private void openShard(boolean append) throws FileNotFoundException {
+        String fileName = shardFileName(nextShard);
+        File file = new File(outputDirectory, fileName);
+        boolean writeHeader = !append || file.length() == 0;
+
+        countingStream = new CountingOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file, append)));
+        printWriter = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(countingStream)));
+
+        shard = new Shard(nextShard, fileName);
+        shards.add(shard);
+        nextShard++;
+
+        if(writeHeader){
+            printWriter.println(header);
+        }
+    }
+
+    private void closeShard(){
+        printWriter.close();
+        shard.bytes = countingStream.count;
+        printWriter = null;
+    }
+}
@@ -0,0 +1,872 @@
+/*
+ * Byte level scanner for Huawei NBI XML files.
+ *
+ * @see http://github.com/bodastage/boda-huaweicmxmlparser
+ */
+package com.bodastage.boda_huaweicmxmlparser;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Scans a memory-mapped NBI XML file and feeds the parser's element handlers.
+ *
+ * NBI files only use a narrow part of XML: elements with attributes,
+ * character data, comments and the predefined or numeric character
+ * references. Only that subset is recognised. DOCTYPE declarations, CDATA
+ * sections, encodings other than UTF-8 and malformed markup raise a
+ * FallbackException so that the file can be parsed with StAX instead.
+ *
+ * @since 1.1.0
+ * @author Bodastage<info@bodastage.com>
+ */
+final class NBIXMLScanner {
+
+    /**
+     * Files are mapped in segments of 1GB since a single mapping can not be
+     * larger than 2GB.
+     *
+     * @since 1.1.0
+     */
+    private static final int MAPPED_SEGMENT_SHIFT = 30;
+
+    /**
+     * Number of slots in the element/attribute name cache. Must be a power of
+     * two.
+     *
+     * @since 1.1.0
+     */
+    private static final int NAME_CACHE_SIZE = 4096;
+
+    private static final Pattern ENCODING_PATTERN
+            = Pattern.compile("encoding\\s*=\\s*[\"']([^\"']*)[\"']");
+
+    /**
+     * Raised when the input uses XML features the scanner does not handle.
+     *
+     * @since 1.1.0
+     */
+    static final class FallbackException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        FallbackException(String message){
+            super(message);
+        }
+    }
+
+    /**
+     * Supplies the input as consecutive segments of 2^segmentShift bytes.
+     * Only the last segment may be shorter.
+     *
+     * @since 1.1.0
+     */
+    interface Source {
+        int segmentShift();
+
+        long length();
+
+        /**
+         * Get a segment. May block until the segment has been read.
+         */
+        ByteBuffer segment(int index) throws IOException;
+
+        /**
+         * Segments before the given index will not be requested again.
+         */
+        void release(int index);
+
+        /**
+         * Read the whole input as a stream.
+         */
+        InputStream newInputStream() throws IOException;
+    }
+
+    /**
+     * Source backed by a memory-mapped file.
+     *
+     * @since 1.1.0
+     */
+    static final class MappedSource implements Source {
+        private final MappedByteBuffer[] segments;
+
+        private final long length;
+
+        MappedSource(String filename) throws FileNotFoundException, IOException {
+            RandomAccessFile file = new RandomAccessFile(filename, "r");
+            try{
+                FileChannel channel = file.getChannel();
+                length = channel.size();
+                long segmentSize = 1L << MAPPED_SEGMENT_SHIFT;
+                segments = new MappedByteBuffer[(int)((length + segmentSize - 1) >>> MAPPED_SEGMENT_SHIFT)];
+                for(int i = 0; i < segments.length; i++){
+                    long offset = i * segmentSize;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                            offset, Math.min(segmentSize, length - offset));
+                }
+            }finally{
+                //The mappings stay valid after the channel is closed
+                file.close();
+            }
+        }
+
+        @Override
+        public int segmentShift(){
+            return MAPPED_SEGMENT_SHIFT;
+        }
+
+        @Override
+        public long length(){
+            return length;
+        }
+
+        @Override
+        public ByteBuffer segment(int index){
+            return segments[index];
+        }
+
+        @Override
+        public void release(int index){
+        }
+
+        @Override
+        public InputStream newInputStream(){
+            return new SourceInputStream(this);
+        }
+    }
+
+    /**
+     * Reads a source's segments in order, releasing each once it has been
+     * read.
+     *
+     * @since 1.1.0
+     */
+    static final class SourceInputStream extends InputStream {
+        private final Source source;
+
+        private int index = -1;
+
+        private ByteBuffer segment = ByteBuffer.allocate(0);
+
+        private long remaining;
+
+        SourceInputStream(Source source){
+            this.source = source;
+            this.remaining = source.length();
+        }
+
+        private boolean nextSegment() throws IOException {
+            if(remaining == 0){
+                return false;
+            }
+            index++;
+            source.release(index);
+            segment = source.segment(index).duplicate();
+            segment.position(0);
+            remaining -= segment.remaining();
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(!segment.hasRemaining() && !nextSegment()){
+                return -1;
+            }
+            return segment.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0){
+                return 0;
+            }
+            if(!segment.hasRemaining() && !nextSegment()){
+                return -1;
+            }
+            int n = Math.min(len, segment.remaining());
+            segment.get(b, off, n);
+            return n;
+        }
+    }
+
+    private final HuaweiCMXMLParser parser;
+
+    private final Source source;
+
+    private final long length;
+
+    private final int segmentShift;
+
+    private final long segmentMask;
+
+    /**
+     * The segment that was read last.
+     */
+    private ByteBuffer segment;
+
+    private int segmentIndex = -1;
+
+    /**
+     * Segments before this one have been released.
+     */
+    private int releasedIndex = 0;
+
+    /**
+     * Current read position and the end of the range being scanned.
+     */
+    private long pos;
+
+    private long limit;
+
+    /**
+     * Bytes of the name, attribute value or text being read.
+     */
+    private byte[] scratch = new byte[256];
+
+    private int scratchLength;
+
+    /**
+     * Set by readName when the name read is a namespace declaration.
+     */
+    private boolean namespaceDeclaration;
+
+    /**
+     * Attributes of the current start tag. Reused for every element.
+     */
+    private final Map<String, String> attributes
+            = new LinkedHashMap<String, String>();
+
+    /**
+     * Names of the open elements, used to check that end tags match.
+     */
+    private String[] openElements = new String[32];
+
+    private int depth;
+
+    /**
+     * Local names already decoded. Element names repeat for every moi so
+     * this saves a String per tag.
+     */
+    private final byte[][] cachedNameBytes = new byte[NAME_CACHE_SIZE][];
+
+    private final String[] cachedNames = new String[NAME_CACHE_SIZE];
+
+    /**
+     * Receives the offsets of the NEs scanned. null if not indexing.
+     */
+    private NEIndex neIndex = null;
+
+    /**
+     * Map the file to be scanned.
+     *
+     * @param parser Parser whose element handlers receive the events
+     * @param filename File to scan
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    NBIXMLScanner(HuaweiCMXMLParser parser, String filename)
+            throws FileNotFoundException, IOException {
+        this(parser, new MappedSource(filename));
+    }
+
+    /**
+     * @param parser Parser whose element handlers receive the events
+     * @param source Input to scan
+     */
+    NBIXMLScanner(HuaweiCMXMLParser parser, Source source){
+        this.parser = parser;
+        this.source = source;
+        this.length = source.length();
+        this.segmentShift = source.segmentShift();
+        this.segmentMask = (1L << segmentShift) - 1;
+    }
+
+    /**
+     * Record the offsets of the NEs scanned.
+     *
+     * @since 1.1.0
+     * @param index Index to fill
+     */
+    void setNEIndex(NEIndex index){
+        this.neIndex = index;
+    }
+
+    /**
+     * Scan the whole file.
+     *
+     * @throws FallbackException
+     * @throws IOException
+     */
+    void scan() throws FallbackException, IOException {
+        scan(0, length);
+    }
+
+    /**
+     * Scan the bytes from start to end. A range that does not start at the
+     * beginning of the file must start inside the root element, after the
+     * end of an NE, and is expected to end inside the root element unless
+     * it ends the file. See nextChunkBoundary.
+     *
+     * @since 1.1.0
+     * @param start Offset of the first byte
+     * @param end Offset after the last byte
+     * @throws FallbackException
+     * @throws IOException
+     */
+    void scan(long start, long end) throws FallbackException, IOException {
+        pos = start;
+        limit = end;
+        depth = 0;
+
+        if(start == 0){
+            skipByteOrderMark();
+        }else{
+            //The root element, whose name has not been seen
+            push(null);
+        }
+
+        while(pos < limit){
+            //Markup and text never look behind their first byte
+            if((int)(pos >>> segmentShift) > releasedIndex){
+                releasedIndex = (int)(pos >>> segmentShift);
+                source.release(releasedIndex);
+            }
+
+            if(byteAt(pos) == '<'){
+                markup();
+            }else{
+                text();
+            }
+        }
+
+        int expectedDepth = end == length ? 0 : 1;
+        if(depth != expectedDepth){
+            throw new FallbackException("Unclosed element " + openElements[depth - 1]);
+        }
+    }
+
+    /**
+     * Find where a chunk that is scanned on its own can end: just after the
+     * first &lt;/NE&gt; at or after from. The chunk may end early inside a
+     * comment or a CDATA section, in which case scanning it fails.
+     *
+     * @since 1.1.0
+     * @param from Offset to search from
+     * @return Offset after the end tag or -1 if there is none
+     * @throws IOException
+     */
+    long nextChunkBoundary(long from) throws IOException {
+        limit = length;
+        try{
+            for(long p = from; p + 5 <= length; p++){
+                if(byteAt(p) == '<' && byteAt(p + 1) == '/' && byteAt(p + 2) == 'N'
+                        && byteAt(p + 3) == 'E' && byteAt(p + 4) == '>'){
+                    return p + 5;
+                }
+            }
+        }catch(FallbackException e){
+            //Not reached, p stays below length
+        }
+        return -1;
+    }
+
+    /**
+     * Size of the mapped file in bytes.
+     */
+    long length(){
+        return length;
+    }
+
+    private byte byteAt(long p) throws FallbackException, IOException {
+        if(p >= limit){
+            throw new FallbackException("Unexpected end of input at byte " + p);
+        }
+        int index = (int)(p >>> segmentShift);
+        if(index != segmentIndex){
+            segment = source.segment(index);
+            segmentIndex = index;
+        }
+        return segment.get((int)(p & segmentMask));
+    }
+
+    private void skipByteOrderMark() throws FallbackException, IOException {
+        if(length >= 2){
+            int b0 = byteAt(0) & 0xFF;
+            int b1 = byteAt(1) & 0xFF;
+            if( (b0 == 0xFE && b1 == 0xFF) || (b0 == 0xFF && b1 == 0xFE)){
+                throw new FallbackException("UTF-16 input is not supported");
+            }
+        }
+
+        if(length >= 3 && (byteAt(0) & 0xFF) == 0xEF
+                && (byteAt(1) & 0xFF) == 0xBB && (byteAt(2) & 0xFF) == 0xBF){
+            pos = 3;
+        }
+    }
+
+    /**
+     * Handle markup starting at '<'.
+     */
+    private void markup()
+            throws FallbackException, IOException {
+        byte b = byteAt(pos + 1);
+
+        if(b == '/'){
+            endTag();
+            return;
+        }
+
+        if(b == '?'){
+            processingInstruction();
+            return;
+        }
+
+        if(b == '!'){
+            if(byteAt(pos + 2) == '-' && byteAt(pos + 3) == '-'){
+                pos = indexOf("-->", pos + 4) + 3;
+                return;
+            }
+            throw new FallbackException("Unsupported markup declaration at byte " + pos);
+        }
+
+        startTag();
+    }
+
+    private void startTag()
+            throws FallbackException, IOException {
+        long tagStart = pos;
+        pos++;
+        String qName = readName();
+        attributes.clear();
+
+        while(true){
+            skipWhiteSpace();
+            byte b = byteAt(pos);
+
+            if(b == '>'){
+                pos++;
+                if(qName.equals("NE") && parser.isFilteredOut(attributes)){
+                    skipElement(tagStart);
+                    return;
+                }
+                if(neIndex != null){
+                    indexStartTag(qName, tagStart);
+                }
+                push(qName);
+                parser.startElement(qName, attributes);
+                return;
+            }
+
+            if(b == '/'){
+                if(byteAt(pos + 1) != '>'){
+                    throw new FallbackException("Malformed empty element tag at byte " + pos);
+                }
+                pos += 2;
+                if(qName.equals("NE") && parser.isFilteredOut(attributes)){
+                    parser.addSkippedNE(pos - tagStart);
+                    return;
+                }
+                if(neIndex != null){
+                    indexStartTag(qName, tagStart);
+                    indexEndTag(qName);
+                }
+                parser.startElement(qName, attributes);
+                parser.endElement(qName);
+                return;
+            }
+
+            String name = readName();
+            boolean isNamespaceDeclaration = namespaceDeclaration;
+            skipWhiteSpace();
+            if(byteAt(pos) != '='){
+                throw new FallbackException("Malformed attribute at byte " + pos);
+            }
+            pos++;
+            skipWhiteSpace();
+
+            byte quote = byteAt(pos);
+            if(quote != '"' && quote != '\''){
+                throw new FallbackException("Unquoted attribute value at byte " + pos);
+            }
+            pos++;
+            String value = readAttributeValue(quote);
+
+            //StAX does not report namespace declarations as attributes
+            if(!isNamespaceDeclaration){
+                attributes.put(name, value);
+            }
+        }
+    }
+
+    /**
+     * Skip an NE up to its end tag without tokenising its contents. NEs
+     * do not nest so the first &lt;/NE&gt; ends it.
+     *
+     * @param tagStart Offset of the NE start tag
+     */
+    private void skipElement(long tagStart) throws FallbackException, IOException {
+        while(true){
+            if(byteAt(pos) == '<' && byteAt(pos + 1) == '/' && byteAt(pos + 2) == 'N'
+                    && byteAt(pos + 3) == 'E'){
+                long end = pos + 4;
+                while(byteAt(end) == ' ' || byteAt(end) == '\t'
+                        || byteAt(end) == '\n' || byteAt(end) == '\r'){
+                    end++;
+                }
+                if(byteAt(end) == '>'){
+                    pos = end + 1;
+                    break;
+                }
+            }
+            pos++;
+
+            if((int)(pos >>> segmentShift) > releasedIndex){
+                releasedIndex = (int)(pos >>> segmentShift);
+                source.release(releasedIndex);
+            }
+        }
+
+        parser.addSkippedNE(pos - tagStart);
+    }
+
+    private void endTag()
+            throws FallbackException, IOException {
+        pos += 2;
+        String qName = readName();
+        skipWhiteSpace();
+        if(byteAt(pos) != '>'){
+            throw new FallbackException("Malformed end tag at byte " + pos);
+        }
+        pos++;
+
+        if(depth == 0 || (openElements[depth - 1] != null 
+                && !openElements[depth - 1].equals(qName))){
+            throw new FallbackException("Unexpected end tag " + qName + " at byte " + pos);
+        }
+        depth--;
+
+        if(neIndex != null){
+            indexEndTag(qName);
+        }
+        parser.endElement(qName);
+    }
+
+    private void indexStartTag(String qName, long tagStart){
+        if(qName.equals("NE")){
+            neIndex.startNE(attributes.get("neid"), tagStart);
+        }else if(qName.equals("moi")){
+            neIndex.addMO(attributes.get("type"));
+        }
+    }
+
+    private void indexEndTag(String qName){
+        if(qName.equals("NE")){
+            neIndex.endNE(pos);
+        }
+    }
+
+    /**
+     * Skip processing instructions. The encoding of the XML declaration is
+     * checked since only UTF-8 is decoded.
+     */
+    private void processingInstruction() throws FallbackException, IOException {
+        long start = pos + 2;
+        pos = indexOf("?>", start) + 2;
+
+        scratchLength = 0;
+        for(long p = start; p < pos - 2; p++){
+            append(byteAt(p));
+        }
+        String instruction = decode();
+
+        if(!instruction.startsWith("xml ")){
+            return;
+        }
+
+        Matcher m = ENCODING_PATTERN.matcher(instruction);
+        if(m.find()){
+            String encoding = m.group(1).toUpperCase();
+            if(!encoding.equals("UTF-8") && !encoding.equals("UTF8")
+                    && !encoding.equals("US-ASCII") && !encoding.equals("ASCII")){
+                throw new FallbackException("Unsupported encoding " + encoding);
+            }
+        }
+    }
+
+    /**
+     * Handle character data up to the next '<'. Runs of white space between
+     * tags are not reported.
+     */
+    private void text() throws FallbackException, IOException {
+        scratchLength = 0;
+        boolean whiteSpace = true;
+
+        while(pos < limit){
+            byte b = byteAt(pos);
+            if(b == '<'){
+                break;
+            }
+            pos++;
+
+            if(b == '&'){
+                readReference();
+                whiteSpace = false;
+                continue;
+            }
+
+            if(b == '\r'){
+                //Line ends are normalised to \n
+                if(pos < limit && byteAt(pos) == '\n'){
+                    pos++;
+                }
+                b = '\n';
+            }else if(b != ' ' && b != '\n' && b != '\t'){
+                whiteSpace = false;
+            }
+            append(b);
+        }
+
+        if(whiteSpace){
+            return;
+        }
+
+        if(depth == 0){
+            throw new FallbackException("Character data outside the root element");
+        }
+
+        parser.characters(decode());
+    }
+
+    /**
+     * Read a name and return its local part.
+     */
+    private String readName() throws FallbackException, IOException {
+        scratchLength = 0;
+        int localStart = 0;
+
+        while(true){
+            byte b = byteAt(pos);
+            if(b == ' ' || b == '\t' || b == '\n' || b == '\r'
+                    || b == '=' || b == '>' || b == '/'){
+                break;
+            }
+            if(b == '<' || b == '"' || b == '\'' || b == '&'){
+                throw new FallbackException("Malformed name at byte " + pos);
+            }
+            if(b == ':'){
+                localStart = scratchLength + 1;
+            }
+            append(b);
+            pos++;
+        }
+
+        if(scratchLength == 0 || localStart == scratchLength){
+            throw new FallbackException("Missing name at byte " + pos);
+        }
+
+        namespaceDeclaration = scratchLength >= 5
+                && scratch[0] == 'x' && scratch[1] == 'm' && scratch[2] == 'l'
+                && scratch[3] == 'n' && scratch[4] == 's'
+                && (scratchLength == 5 || scratch[5] == ':');
+
+        return cachedName(localStart);
+    }
+
+    /**
+     * Look up the name in scratch[offset..scratchLength) in the name cache.
+     */
+    private String cachedName(int offset){
+        int length = scratchLength - offset;
+        int hash = 0;
+        for(int i = offset; i < scratchLength; i++){
+            hash = 31 * hash + scratch[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (NAME_CACHE_SIZE - 1);
+
+        byte[] cached = cachedNameBytes[slot];
+        if(cached != null && cached.length == length){
+            boolean equal = true;
+            for(int i = 0; i < length; i++){
+                if(cached[i] != scratch[offset + i]){
+                    equal = false;
+                    break;
+                }
+            }
+            if(equal){
+                return cachedNames[slot];
+            }
+        }
+
+        byte[] key = new byte[length];
+        System.arraycopy(scratch, offset, key, 0, length);
+        String name = new String(key, StandardCharsets.UTF_8);
+        cachedNameBytes[slot] = key;
+        cachedNames[slot] = name;
+        return name;
+    }
+
+    /**
+     * Read an attribute value up to the closing quote. White space characters
+     * are normalised to spaces as required by the XML specification.
+     */
+    private String readAttributeValue(byte quote) throws FallbackException, IOException {
+        scratchLength = 0;
+
+        while(true){
+            byte b = byteAt(pos++);
+            if(b == quote){
+                break;
+            }
+            if(b == '<'){
+                throw new FallbackException("Invalid '<' in attribute value at byte " + pos);
+            }
+            if(b == '&'){
+                readReference();
+                continue;
+            }
+            if(b == '\r'){
+                if(byteAt(pos) == '\n'){
+                    pos++;
+                }
+                b = ' ';
+            }else if(b == '\n' || b == '\t'){
+                b = ' ';
+            }
+            append(b);
+        }
+
+        return decode();
+    }
+
+    /**
+     * Decode an entity or character reference. pos is just after the '&'.
+     * The UTF-8 bytes of the referenced character are appended to scratch.
+     */
+    private void readReference() throws FallbackException, IOException {
+        long start = pos;
+        int end = -1;
+        for(int i = 0; i < 12; i++){
+            if(byteAt(start + i) == ';'){
+                end = i;
+                break;
+            }
+        }
+        if(end <= 0){
+            throw new FallbackException("Malformed reference at byte " + start);
+        }
+        pos = start + end + 1;
+
+        byte first = byteAt(start);
+        if(first != '#'){
+            String name = referenceName(start, end);
+            if(name.equals("amp")){
+                append((byte)'&');
+            }else if(name.equals("lt")){
+                append((byte)'<');
+            }else if(name.equals("gt")){
+                append((byte)'>');
+            }else if(name.equals("quot")){
+                append((byte)'"');
+            }else if(name.equals("apos")){
+                append((byte)'\'');
+            }else{
+                throw new FallbackException("Unsupported entity &" + name + ";");
+            }
+            return;
+        }
+
+        int codePoint = 0;
+        boolean hex = byteAt(start + 1) == 'x';
+        int digitStart = hex ? 2 : 1;
+        if(digitStart >= end){
+            throw new FallbackException("Malformed character reference at byte " + start);
+        }
+        for(int i = digitStart; i < end; i++){
+            int digit = Character.digit((char) byteAt(start + i), hex ? 16 : 10);
+            if(digit < 0){
+                throw new FallbackException("Malformed character reference at byte " + start);
+            }
+            codePoint = codePoint * (hex ? 16 : 10) + digit;
+        }
+        if(!Character.isValidCodePoint(codePoint)){
+            throw new FallbackException("Invalid character reference at byte " + start);
+        }
+
+        byte[] encoded = new String(Character.toChars(codePoint))
+                .getBytes(StandardCharsets.UTF_8);
+        for(int i = 0; i < encoded.length; i++){
+            append(encoded[i]);
+        }
+    }
+
+    private String referenceName(long start, int length) throws FallbackException, IOException {
+        char[] name = new char[length];
+        for(int i = 0; i < length; i++){
+            name[i] = (char) byteAt(start + i);
+        }
+        return new String(name);
+    }
+
+    private void skipWhiteSpace() throws FallbackException, IOException {
+        while(true){
+            byte b = byteAt(pos);
+            if(b != ' ' && b != '\t' && b != '\n' && b != '\r'){
+                return;
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * Find the position of an ASCII string at or after from.
+     */
+    private long indexOf(String s, long from) throws FallbackException, IOException {
+        byte first = (byte) s.charAt(0);
+        for(long p = from; ; p++){
+            if(byteAt(p) != first){
+                continue;
+            }
+            boolean found = true;
+            for(int i = 1; i < s.length(); i++){
+                if(byteAt(p + i) != s.charAt(i)){
+                    found = false;
+                    break;
+                }
+            }
+            if(found){
+                return p;
+            }
+        }
+    }
+
+    private void push(String qName){
+        if(depth == openElements.length){
+            String[] grown = new String[depth * 2];
+            System.arraycopy(openElements, 0, grown, 0, depth);
+            openElements = grown;
+        }
+        openElements[depth++] = qName;
+    }
+
+    private void append(byte b){
+        if(scratchLength == scratch.length){
+            byte[] grown = new byte[scratch.length * 2];
+            System.arraycopy(scratch, 0, grown, 0, scratchLength);
+            scratch = grown;
+        }
+        scratch[scratchLength++] = b;
+    }
+
+    private String decode(){
+        return new String(scratch, 0, scratchLength, StandardCharsets.UTF_8);
+    }
+}
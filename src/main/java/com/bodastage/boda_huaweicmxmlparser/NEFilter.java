@@ -0,0 +1,105 @@
+/*
+ * Selects the NEs to parse by their attributes.
+ *
+ * @see http://github.com/bodastage/boda-huaweicmxmlparser
+ */
+package com.bodastage.boda_huaweicmxmlparser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Conditions on the attributes of the NE tag:
+ * &lt;NE xsi:type="SRAN" netype="NodeB" neversion="XXX" neid="XXX"&gt;
+ *
+ * Each condition lists the values allowed for one attribute, for example
+ * netype=BTS3900,NodeB. A value ending with * matches any value starting
+ * with what comes before it. An NE is parsed if it matches all the
+ * conditions. The subtrees of other NEs are skipped.
+ *
+ * @since 1.1.0
+ * @author Bodastage<info@bodastage.com>
+ */
+public final class NEFilter {
+
+    /**
+     * Attributes that can be filtered on.
+     *
+     * @since 1.1.0
+     */
+    static final List<String> ATTRIBUTES = Arrays.asList("type", "netype", "neversion", "neid");
+
+    private final Map<String, Set<String>> allowedValues
+            = new LinkedHashMap<String, Set<String>>();
+
+    /**
+     * Add a condition.
+     *
+     * @param condition ATTRIBUTE=VALUE[,VALUE...]
+     * @throws IllegalArgumentException
+     */
+    public void add(String condition){
+        int equals = condition.indexOf('=');
+        String attribute = equals < 0 ? condition : condition.substring(0, equals).trim();
+        if(equals < 0 || !ATTRIBUTES.contains(attribute)){
+            throw new IllegalArgumentException("Invalid NE filter " + condition
+                    + ". Expected one of " + ATTRIBUTES + " followed by =VALUE[,VALUE...]");
+        }
+
+        Set<String> values = allowedValues.get(attribute);
+        if(values == null){
+            values = new LinkedHashSet<String>();
+            allowedValues.put(attribute, values);
+        }
+        for(String value : condition.substring(equals + 1).split(",")){
+            values.add(value.trim());
+        }
+    }
+
+    /**
+     * @return The conditions in the form taken by add
+     */
+    List<String> getConditions(){
+        List<String> conditions = new ArrayList<String>();
+        for(Map.Entry<String, Set<String>> me : allowedValues.entrySet()){
+            StringBuilder condition = new StringBuilder(me.getKey()).append('=');
+            for(String value : me.getValue()){
+                if(condition.charAt(condition.length() - 1) != '=') condition.append(',');
+                condition.append(value);
+            }
+            conditions.add(condition.toString());
+        }
+        return conditions;
+    }
+    
+    /**
+     * @param attributes Attributes of the NE tag by local name
+     * @return true if the NE is to be parsed
+     */
+    boolean matches(Map<String, String> attributes){
+        for(Map.Entry<String, Set<String>> me : allowedValues.entrySet()){
+            String value = attributes.get(me.getKey());
+            if(value == null || !matches(me.getValue(), value)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(Set<String> allowed, String value){
+        if(allowed.contains(value)){
+            return true;
+        }
+        for(String a : allowed){
+            if(a.endsWith("*") && value.startsWith(a.substring(0, a.length() - 1))){
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Byte offsets of the NEs of a file.
+ *
+ * @see http://github.com/bodastage/boda-huaweicmxmlparser
+ */
+package com.bodastage.boda_huaweicmxmlparser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of where each NE of a file starts and ends so that a single NE can
+ * be parsed again by seeking to it instead of parsing the whole file.
+ *
+ * The byte scanner fills the index while it parses the values of a file. It
+ * is saved as &lt;file name&gt;.neidx:
+ * <pre>
+ * length,lastModified          version of the indexed file
+ * datetime                     date time of the file footer
+ * neid,start,end,MO:n MO:n     one line per NE with the number of
+ *                              instances of each managed object. The
+ *                              neid can contain commas
+ * </pre>
+ *
+ * @since 1.1.0
+ * @author Bodastage<info@bodastage.com>
+ */
+final class NEIndex {
+
+    static final String EXTENSION = ".neidx";
+
+    /**
+     * Location of an NE.
+     *
+     * @since 1.1.0
+     */
+    static final class Entry {
+        final String neId;
+
+        final long start;
+
+        long end;
+
+        final Map<String, Integer> moCounts = new LinkedHashMap<String, Integer>();
+
+        Entry(String neId, long start){
+            this.neId = neId;
+            this.start = start;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    private String dateTime;
+
+    /**
+     * NE being scanned.
+     */
+    private Entry current;
+
+    /**
+     * @param neId neid attribute of the NE tag
+     * @param start Offset of the NE start tag
+     */
+    void startNE(String neId, long start){
+        current = new Entry(neId == null ? "" : neId, start);
+    }
+
+    /**
+     * @param mo Type of a moi of the current NE
+     */
+    void addMO(String mo){
+        if(current == null || mo == null){
+            return;
+        }
+        Integer count = current.moCounts.get(mo);
+        current.moCounts.put(mo, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * @param end Offset after the NE end tag
+     */
+    void endNE(long end){
+        if(current == null){
+            return;
+        }
+        current.end = end;
+        entries.add(current);
+        current = null;
+    }
+
+    /**
+     * @return The entries of an NE, in file order. An NE can be split over
+     *         several NE elements.
+     */
+    List<Entry> find(String neId){
+        List<Entry> found = new ArrayList<Entry>();
+        for(Entry e : entries){
+            if(e.neId.equals(neId)){
+                found.add(e);
+            }
+        }
+        return found;
+    }
+
+    String getDateTime(){
+        return dateTime;
+    }
+
+    /**
+     * Path of the index of a file.
+     */
+    static File indexFile(String directory, File file){
+        return new File(directory, file.getName() + EXTENSION);
+    }
+
+    /**
+     * Write the index of a file.
+     *
+     * @param file Indexed file
+     * @param directory Directory of the index
+     * @param dateTime Date time of the file
+     * @throws IOException
+     */
+    void save(File file, String directory, String dateTime) throws IOException {
+        Path p = indexFile(directory, file).toPath();
+        Path temp = p.resolveSibling(p.getFileName() + ".tmp");
+        Files.createDirectories(p.getParent());
+        PrintWriter pw = new PrintWriter(Files.newBufferedWriter(temp));
+        pw.println(file.length() + "," + file.lastModified());
+        pw.println(dateTime == null ? "" : dateTime);
+        for(Entry e : entries){
+            StringBuilder line = new StringBuilder();
+            line.append(e.neId).append(',').append(e.start).append(',').append(e.end).append(',');
+            for(Map.Entry<String, Integer> me : e.moCounts.entrySet()){
+                if(line.charAt(line.length() - 1) != ',') line.append(' ');
+                line.append(me.getKey()).append(':').append(me.getValue());
+            }
+            pw.println(line);
+        }
+        pw.close();
+        Files.move(temp, p, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read the index of a file.
+     *
+     * @param file Indexed file
+     * @param directory Directory of the index
+     * @return The index
+     * @throws IOException If there is no index or the file has changed
+     *         since it was indexed
+     */
+    static NEIndex load(File file, String directory) throws IOException {
+        File indexFile = indexFile(directory, file);
+        if(!indexFile.isFile()){
+            throw new IOException("There is no NE index " + indexFile);
+        }
+
+        List<String> lines = Files.readAllLines(indexFile.toPath());
+        if(lines.size() < 2 || !lines.get(0).equals(file.length() + "," + file.lastModified())){
+            throw new IOException("The NE index " + indexFile + " is out of date");
+        }
+
+        NEIndex index = new NEIndex();
+        index.dateTime = lines.get(1).isEmpty() ? null : lines.get(1);
+        for(String line : lines.subList(2, lines.size())){
+            //The neid may contain commas so the fields are found from the end
+            int mos = line.lastIndexOf(',');
+            int end = line.lastIndexOf(',', mos - 1);
+            int start = line.lastIndexOf(',', end - 1);
+            Entry e = new Entry(line.substring(0, start),
+                    Long.parseLong(line.substring(start + 1, end)));
+            e.end = Long.parseLong(line.substring(end + 1, mos));
+            if(mos < line.length() - 1){
+                for(String mo : line.substring(mos + 1).split(" ")){
+                    int colon = mo.lastIndexOf(':');
+                    e.moCounts.put(mo.substring(0, colon), Integer.parseInt(mo.substring(colon + 1)));
+                }
+            }
+            index.entries.add(e);
+        }
+        return index;
+    }
+}
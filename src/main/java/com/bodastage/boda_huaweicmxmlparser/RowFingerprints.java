@@ -0,0 +1,140 @@
+/*
+ * Fingerprints of the rows written, used to drop duplicate rows.
+ *
+ * @see http://github.com/bodastage/boda-huaweicmxmlparser
+ */
+package com.bodastage.boda_huaweicmxmlparser;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Set of 64-bit fingerprints of the rows written so far.
+ *
+ * A row is identified by its managed object and all its values without the
+ * file name and date time, so the same instance exported by several OMCs or
+ * in several daily files has the same fingerprint. The export does not say
+ * which parameters identify an instance, so the whole row is compared and
+ * an instance whose parameters changed between exports is kept twice. The fingerprints are kept
+ * in an open addressing table of longs, 8 bytes per row at most 3/4 full,
+ * instead of a set of strings. Two different rows with the same fingerprint
+ * would be taken as duplicates; with 64 bits this is unlikely below billions
+ * of rows.
+ *
+ * @since 1.1.0
+ * @author Bodastage<info@bodastage.com>
+ */
+final class RowFingerprints {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private long[] table = new long[1 << 16];
+
+    private int size = 0;
+
+    /**
+     * 0 marks empty slots so it is kept apart.
+     */
+    private boolean hasZero = false;
+
+    private final Map<String, Long> duplicates = new TreeMap<String, Long>();
+
+    private long duplicateCount = 0;
+
+    /**
+     * @param mo Managed object
+     * @param values Values of the row after the file name and date time
+     * @return Fingerprint of the row
+     */
+    static long fingerprint(String mo, String values){
+        long h = FNV_OFFSET_BASIS;
+        for(int i = 0; i < mo.length(); i++){
+            h = (h ^ mo.charAt(i)) * FNV_PRIME;
+        }
+        h = (h ^ 0xffff) * FNV_PRIME;
+        for(int i = 0; i < values.length(); i++){
+            h = (h ^ values.charAt(i)) * FNV_PRIME;
+        }
+
+        //Spread the bits so that the low bits make a good table index
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Record a row. Safe to call from many threads.
+     *
+     * @param mo Managed object
+     * @param values Values of the row after the file name and date time
+     * @return false if the row is a duplicate and is counted as such
+     */
+    synchronized boolean add(String mo, String values){
+        if(!add(fingerprint(mo, values))){
+            Long count = duplicates.get(mo);
+            duplicates.put(mo, count == null ? 1 : count + 1);
+            duplicateCount++;
+            return false;
+        }
+        return true;
+    }
+
+    private boolean add(long fingerprint){
+        if(fingerprint == 0){
+            if(hasZero){
+                return false;
+            }
+            hasZero = true;
+            return true;
+        }
+
+        int mask = table.length - 1;
+        for(int i = (int) fingerprint & mask; ; i = (i + 1) & mask){
+            if(table[i] == 0){
+                table[i] = fingerprint;
+                if(++size * 4 >= table.length * 3){
+                    grow();
+                }
+                return true;
+            }
+            if(table[i] == fingerprint){
+                return false;
+            }
+        }
+    }
+
+    private void grow(){
+        long[] old = table;
+        table = new long[old.length * 2];
+        int mask = table.length - 1;
+        for(long f : old){
+            if(f == 0){
+                continue;
+            }
+            int i = (int) f & mask;
+            while(table[i] != 0){
+                i = (i + 1) & mask;
+            }
+            table[i] = f;
+        }
+    }
+
+    /**
+     * @return Number of duplicate rows
+     */
+    synchronized long getDuplicateCount(){
+        return duplicateCount;
+    }
+
+    /**
+     * @return Number of duplicate rows of each managed object
+     */
+    synchronized Map<String, Long> getDuplicates(){
+        return new TreeMap<String, Long>(duplicates);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Splits compound switch parameters into one column per switch.
+ *
+ * @see http://github.com/bodastage/boda-huaweicmxmlparser
+ */
+package com.bodastage.boda_huaweicmxmlparser;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Expands compound switch values such as SWITCH_A-1&amp;SWITCH_B-0 of a
+ * parameter SW into the columns SW_SWITCH_A=1 and SW_SWITCH_B=0.
+ *
+ * Most switch values repeat on every instance of a managed object, so the
+ * result of each split is cached by parameter and value and repeated values
+ * are neither split again nor allocate new column names. The cache is
+ * cleared when it holds CACHE_SIZE values. Each parser has its own expander
+ * so the cache is not locked.
+ *
+ * @since 1.1.0
+ * @author Bodastage<info@bodastage.com>
+ */
+final class SwitchExpander {
+
+    /**
+     * Largest number of values cached.
+     *
+     * @since 1.1.0
+     */
+    static final int CACHE_SIZE = 1 << 16;
+
+    /**
+     * Cached for values that are not compound switches.
+     */
+    private static final String[] NOT_A_SWITCH = new String[0];
+
+    private final Map<String, Map<String, String[]>> cache
+            = new HashMap<String, Map<String, String[]>>();
+
+    private int cachedValues = 0;
+
+    /**
+     * Split a value if it is a compound switch.
+     *
+     * @param parameter Parameter name
+     * @param value Parameter value
+     * @return Column names and values, alternately, or null if the value is
+     *         not a compound switch. Must not be modified.
+     */
+    String[] expand(String parameter, String value){
+        Map<String, String[]> values = cache.get(parameter);
+        if(values == null){
+            values = new HashMap<String, String[]>();
+            cache.put(parameter, values);
+        }
+
+        String[] columns = values.get(value);
+        if(columns == null){
+            if(cachedValues >= CACHE_SIZE){
+                cache.clear();
+                cachedValues = 0;
+                values = new HashMap<String, String[]>();
+                cache.put(parameter, values);
+            }
+            columns = split(parameter, value);
+            values.put(value, columns);
+            cachedValues++;
+        }
+
+        return columns == NOT_A_SWITCH ? null : columns;
+    }
+
+    /**
+     * Split NAME-STATE&amp;NAME-STATE... where a name starts with a letter or
+     * an underscore and a state is a number. At least two switches are
+     * required since names and labels such as Lagos-1 look like a single
+     * switch, and every distinct value would add a column.
+     */
+    private static String[] split(String parameter, String value){
+        if(value.indexOf('&') < 0){
+            return NOT_A_SWITCH;
+        }
+
+        String[] switches = value.split("&", -1);
+        String[] columns = new String[switches.length * 2];
+        for(int i = 0; i < switches.length; i++){
+            String s = switches[i];
+            int dash = s.lastIndexOf('-');
+            if(dash < 1 || dash == s.length() - 1 || !isName(s, dash) || !isNumber(s, dash + 1)){
+                return NOT_A_SWITCH;
+            }
+            columns[2 * i] = parameter + "_" + s.substring(0, dash);
+            columns[2 * i + 1] = s.substring(dash + 1);
+        }
+        return columns;
+    }
+
+    private static boolean isName(String s, int end){
+        char first = s.charAt(0);
+        if(!Character.isLetter(first) && first != '_'){
+            return false;
+        }
+        for(int i = 1; i < end; i++){
+            char c = s.charAt(i);
+            if(!Character.isLetterOrDigit(c) && c != '_'){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNumber(String s, int start){
+        for(int i = start; i < s.length(); i++){
+            if(s.charAt(i) < '0' || s.charAt(i) > '9'){
+                return false;
+            }
+        }
+        return true;
+    }
+}
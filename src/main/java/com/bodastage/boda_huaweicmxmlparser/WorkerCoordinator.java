@@ -0,0 +1,162 @@
+/*
+ * Spreads the files of a run over worker processes.
+ *
+ * @see http://github.com/bodastage/boda-huaweicmxmlparser
+ */
+package com.bodastage.boda_huaweicmxmlparser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs each pass of the parser in several JVMs on the same machine.
+ *
+ * The coordinator and its workers share the checkpoint directory of the
+ * output directory as their work directory. The files are split into
+ * contiguous ranges of about the same size and each worker is started with
+ * the list of its files and the pass to run:
+ * <pre>
+ * parameters  the worker saves the columns of each of its files
+ * values      the worker loads the merged schema and commits the csv output
+ *             of each of its files to a segment
+ * </pre>
+ *
+ * After each pass the coordinator runs the same pass over all the files
+ * with its checkpoint. The files done by the workers are loaded from the
+ * checkpoint, which merges the columns into the schema and assembles the
+ * segments in file order, and files a worker did not finish are parsed by
+ * the coordinator itself.
+ *
+ * @since 1.1.0
+ * @author Bodastage<info@bodastage.com>
+ */
+final class WorkerCoordinator {
+
+    /**
+     * Worker pass names used on the command line.
+     *
+     * @since 1.1.0
+     */
+    static final String PARAMETERS = "parameters";
+
+    static final String VALUES = "values";
+
+    private final List<File> files;
+
+    private final int workers;
+
+    private final List<String> arguments;
+
+    private final Path workDirectory;
+
+    private final boolean printProgress;
+
+    /**
+     * @param files Files of the run in checkpoint order
+     * @param workers Number of worker processes
+     * @param arguments Command line arguments with the parser's settings
+     * @param outputDirectory Output directory of the run
+     * @param printProgress
+     */
+    WorkerCoordinator(List<File> files, int workers, List<String> arguments,
+            String outputDirectory, boolean printProgress){
+        this.files = files;
+        this.workers = Math.max(1, Math.min(workers, files.size()));
+        this.arguments = arguments;
+        this.workDirectory = Paths.get(outputDirectory, Checkpoint.DIRECTORY, "workers");
+        this.printProgress = printProgress;
+    }
+
+    /**
+     * Split the files into contiguous ranges of about the same total size.
+     *
+     * @param files The files
+     * @param count Number of ranges
+     * @return The ranges. Some may be empty.
+     */
+    static List<List<File>> split(List<File> files, int count){
+        long total = 0;
+        for(File f : files){
+            total += f.length();
+        }
+
+        List<List<File>> ranges = new ArrayList<List<File>>();
+        for(int i = 0; i < count; i++){
+            ranges.add(new ArrayList<File>());
+        }
+
+        long size = 0;
+        int range = 0;
+        for(int i = 0; i < files.size(); i++){
+            //Leave at least one file for each of the remaining ranges
+            boolean full = size * count >= total * (range + 1) && !ranges.get(range).isEmpty();
+            if(range < count - 1 && (full || files.size() - i <= count - 1 - range)){
+                range++;
+            }
+            ranges.get(range).add(files.get(i));
+            size += files.get(i).length();
+        }
+        return ranges;
+    }
+
+    /**
+     * Run a pass in the worker processes and wait for all of them to exit.
+     *
+     * @param pass PARAMETERS or VALUES
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void run(String pass) throws IOException, InterruptedException {
+        Files.createDirectories(workDirectory);
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+
+        List<Process> processes = new ArrayList<Process>();
+        List<List<File>> ranges = split(files, workers);
+        for(int i = 0; i < ranges.size(); i++){
+            List<String> lines = new ArrayList<String>();
+            for(File f : ranges.get(i)){
+                lines.add(f.getAbsolutePath());
+            }
+            Path fileList = workDirectory.resolve(i + ".files");
+            Files.write(fileList, lines, StandardCharsets.UTF_8);
+
+            List<String> command = new ArrayList<String>();
+            command.add(java);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(HuaweiCMXMLParser.class.getName());
+            command.addAll(arguments);
+            command.add("--worker-files");
+            command.add(fileList.toString());
+            command.add("--worker-pass");
+            command.add(pass);
+
+            processes.add(new ProcessBuilder(command).inheritIO().start());
+        }
+
+        if(printProgress){
+            System.out.println("Started " + processes.size() + " workers for the "
+                    + pass + " pass.");
+        }
+
+        try{
+            for(int i = 0; i < processes.size(); i++){
+                int exitCode = processes.get(i).waitFor();
+                if(exitCode != 0){
+                    System.out.println("Worker " + i + " exited with code " + exitCode
+                            + ". Its unfinished files will be parsed by the coordinator.");
+                }
+            }
+        }finally{
+            for(Process p : processes){
+                p.destroy();
+            }
+        }
+    }
+}
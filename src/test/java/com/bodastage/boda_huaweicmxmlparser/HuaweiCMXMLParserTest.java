@@ -0,0 +1,741 @@
+package com.bodastage.boda_huaweicmxmlparser;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+import junit.framework.TestCase;
+
+/**
+ * Tests for the parser's output options.
+ */
+public class HuaweiCMXMLParserTest extends TestCase {
+
+    private File workDirectory;
+
+    private File outputDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        workDirectory = Files.createTempDirectory("huaweicmparser").toFile();
+        outputDirectory = new File(workDirectory, "out");
+        outputDirectory.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(workDirectory);
+    }
+
+    private HuaweiCMXMLParser newParser(File input){
+        HuaweiCMXMLParser parser = new HuaweiCMXMLParser();
+        parser.setDataSource(input.getAbsolutePath());
+        parser.setOutputDirectory(outputDirectory.getAbsolutePath());
+        return parser;
+    }
+
+    private List<String> readLines(String fileName) throws Exception {
+        return Files.readAllLines(new File(outputDirectory, fileName).toPath());
+    }
+
+    /**
+     * Count the data rows of a csv file. Rows start with the source file name.
+     */
+    private int countRows(String fileName) throws Exception {
+        int rows = 0;
+        for(String line : readLines(fileName)){
+            if(line.startsWith("nbi.xml,")) rows++;
+        }
+        return rows;
+    }
+
+    public void testShardByRows() throws Exception {
+        File input = new File(workDirectory, "nbi.xml");
+        NBIXMLScannerTest.generateNBIFile(input, 4, "");
+
+        HuaweiCMXMLParser parser = newParser(input);
+        parser.setMaxShardRows(5);
+        parser.parse();
+
+        //4 NEs with 3 CELL mois each
+        assertEquals(5, countRows("CELL_00001.csv"));
+        assertEquals(5, countRows("CELL_00002.csv"));
+        assertEquals(2, countRows("CELL_00003.csv"));
+        assertEquals(readLines("CELL_00001.csv").get(0), readLines("CELL_00003.csv").get(0));
+
+        List<String> manifest = readLines("manifest.csv");
+        assertEquals("mo,shard,file,rows,bytes", manifest.get(0));
+        assertTrue(manifest.contains("SUBSESSION_NE,1,SUBSESSION_NE_00001.csv,4,"
+                + new File(outputDirectory, "SUBSESSION_NE_00001.csv").length()));
+        assertTrue(manifest.contains("CELL,3,CELL_00003.csv,2,"
+                + new File(outputDirectory, "CELL_00003.csv").length()));
+    }
+
+    private static void awaitParsed(HuaweiCMXMLWatcher watcher) throws Exception {
+        while(!watcher.inProgress.isEmpty()){
+            Thread.sleep(50);
+        }
+    }
+
+    public void testWatcherWaitsForFilesToSettle() throws Exception {
+        File input = new File(workDirectory, "in");
+        input.mkdir();
+        File file = new File(input, "nbi.xml");
+        NBIXMLScannerTest.generateNBIFile(file, 2, "");
+        Files.write(new File(input, "next.xml.part").toPath(), new byte[0]);
+
+        HuaweiCMXMLWatcher watcher = new HuaweiCMXMLWatcher(new HuaweiCMXMLParser(),
+                input.getAbsolutePath(), outputDirectory.getAbsolutePath(), 1, 1);
+        try{
+            watcher.addDirectoryFiles();
+            assertEquals(1, watcher.pending.size());
+            watcher.submitSettledFiles();
+            watcher.submitSettledFiles();
+            assertTrue(watcher.inProgress.isEmpty());
+            assertTrue(watcher.pending.containsKey(file.toPath()));
+
+            Thread.sleep(1100);
+            watcher.submitSettledFiles();
+            assertTrue(watcher.pending.isEmpty());
+            awaitParsed(watcher);
+        }finally{
+            watcher.shutdown();
+        }
+
+        //The output is published under the file name, without the
+        //temporary directory
+        assertEquals(Arrays.asList("nbi.xml"), Arrays.asList(outputDirectory.list()));
+        assertEquals(6, countRows("nbi.xml/CELL.csv"));
+    }
+
+    public void testWatcherReparsesChangedFiles() throws Exception {
+        File input = new File(workDirectory, "in");
+        input.mkdir();
+        File file = new File(input, "nbi.xml");
+        NBIXMLScannerTest.generateNBIFile(file, 2, "");
+        File parameterFile = new File(workDirectory, "parameters.txt");
+        Files.write(parameterFile.toPath(), Arrays.asList("CELL:CELLID,CELLNAME"));
+
+        HuaweiCMXMLParser settings = new HuaweiCMXMLParser();
+        settings.setParameterFile(parameterFile.getAbsolutePath());
+        HuaweiCMXMLWatcher watcher = new HuaweiCMXMLWatcher(settings,
+                input.getAbsolutePath(), outputDirectory.getAbsolutePath(), 1, 0);
+        try{
+            watcher.addDirectoryFiles();
+            watcher.submitSettledFiles();
+            watcher.submitSettledFiles();
+            awaitParsed(watcher);
+            List<String> cells = readLines("nbi.xml/CELL.csv");
+            assertTrue(cells.get(0).endsWith(",CELLID,CELLNAME"));
+            assertEquals(6, countRows("nbi.xml/CELL.csv"));
+            assertFalse(new File(outputDirectory, "nbi.xml/GCELL.csv").exists());
+
+            //A file that changes while it is parsed waits for that parse
+            watcher.inProgress.add(file.toPath());
+            NBIXMLScannerTest.generateNBIFile(file, 3, "");
+            file.setLastModified(file.lastModified() + 2000);
+            watcher.addDirectoryFiles();
+            watcher.submitSettledFiles();
+            watcher.submitSettledFiles();
+            assertTrue(watcher.pending.containsKey(file.toPath()));
+            watcher.inProgress.remove(file.toPath());
+
+            //The same parser is reset and parses the new version
+            watcher.submitSettledFiles();
+            assertTrue(watcher.pending.isEmpty());
+            awaitParsed(watcher);
+            assertEquals(9, countRows("nbi.xml/CELL.csv"));
+            assertEquals(cells.get(0), readLines("nbi.xml/CELL.csv").get(0));
+
+            //An unchanged file is not parsed again
+            watcher.addDirectoryFiles();
+            watcher.submitSettledFiles();
+            watcher.submitSettledFiles();
+            assertTrue(watcher.pending.isEmpty());
+            assertTrue(watcher.inProgress.isEmpty());
+        }finally{
+            watcher.shutdown();
+        }
+        assertEquals(Arrays.asList("nbi.xml"), Arrays.asList(outputDirectory.list()));
+    }
+
+    public void testFileSchedulerMatchesSerialParsing() throws Exception {
+        File input = new File(workDirectory, "in");
+        input.mkdir();
+        for(int i = 1; i <= 4; i++){
+            NBIXMLScannerTest.generateNBIFile(new File(input, "nbi" + i + ".xml"), i, "");
+        }
+
+        HuaweiCMXMLParser parser = newParser(input);
+        parser.parse();
+        File serial = new File(workDirectory, "serial");
+        outputDirectory.renameTo(serial);
+
+        for(String mode : new String[]{FileScheduler.PLATFORM, FileScheduler.VIRTUAL}){
+            outputDirectory = new File(workDirectory, mode);
+            outputDirectory.mkdir();
+            parser = newParser(input);
+            parser.setUseByteScanner(true);
+            parser.setFileScheduler(mode, 3, 2);
+            parser.parse();
+
+            for(String f : serial.list()){
+                List<String> expected = Files.readAllLines(new File(serial, f).toPath());
+                List<String> actual = readLines(f);
+                assertEquals(f, expected.get(0), actual.get(0));
+                Collections.sort(expected);
+                Collections.sort(actual);
+                assertEquals(f, expected, actual);
+            }
+        }
+    }
+
+    public void testChunkedParameterExtractionMatchesSerialParsing() throws Exception {
+        File input = new File(workDirectory, "in");
+        input.mkdir();
+        NBIXMLScannerTest.generateNBIFile(new File(input, "nbi1.xml"), 30, "");
+        NBIXMLScannerTest.generateNBIFile(new File(input, "nbi2.xml"), 2, "");
+
+        HuaweiCMXMLParser parser = newParser(input);
+        parser.parse();
+        File serial = new File(workDirectory, "serial");
+        outputDirectory.renameTo(serial);
+
+        outputDirectory = new File(workDirectory, "chunked");
+        outputDirectory.mkdir();
+        parser = newParser(input);
+        parser.setUseByteScanner(true);
+        parser.setFileScheduler(FileScheduler.PLATFORM, 4, 2);
+        parser.setDiscoveryChunkSize(2048);
+        parser.parse();
+
+        for(String f : serial.list()){
+            List<String> expected = Files.readAllLines(new File(serial, f).toPath());
+            List<String> actual = readLines(f);
+            assertEquals(f, expected.get(0), actual.get(0));
+            Collections.sort(expected);
+            Collections.sort(actual);
+            assertEquals(f, expected, actual);
+        }
+    }
+
+    public void testColumnSchemaOrder() throws Exception {
+        Map<String, Stack> chunk0 = new LinkedHashMap<String, Stack>();
+        Map<String, Stack> chunk1 = new LinkedHashMap<String, Stack>();
+        chunk0.put("CELL", stack("A", "B"));
+        chunk1.put("GCELL", stack("X"));
+        chunk1.put("CELL", stack("C", "A"));
+
+        //Merged out of order
+        ColumnSchema schema = new ColumnSchema();
+        schema.add(0, 1, chunk1);
+        schema.add(0, 0, chunk0);
+
+        Map<String, Stack> columns = schema.toColumns();
+        assertEquals(Arrays.asList("CELL", "GCELL"), new ArrayList<String>(columns.keySet()));
+        assertEquals(stack("A", "B", "C"), columns.get("CELL"));
+    }
+
+    private static Stack stack(String... columns){
+        Stack stack = new Stack();
+        stack.addAll(Arrays.asList(columns));
+        return stack;
+    }
+
+    public void testPartitionByNEType() throws Exception {
+        File input = new File(workDirectory, "in");
+        input.mkdir();
+        //NE 1000 is in both files so its partition is appended to
+        NBIXMLScannerTest.generateNBIFile(new File(input, "nbi1.xml"), 1, "");
+        NBIXMLScannerTest.generateNBIFile(new File(input, "nbi2.xml"), 2, "");
+
+        HuaweiCMXMLParser parser = newParser(input);
+        parser.setPartitionBy(HuaweiCMXMLParser.PARTITION_BY_NETYPE);
+        parser.parse();
+
+        List<String> ne1000 = readLines("CELL/netype=BTS3900/neid=1000.csv");
+        assertTrue(ne1000.get(0).startsWith("FileName,"));
+        assertEquals(1, Collections.frequency(ne1000, ne1000.get(0)));
+        int rows = 0;
+        for(String line : ne1000){
+            if(line.startsWith("nbi")) rows++;
+        }
+        assertEquals(6, rows);
+
+        assertEquals(2, readLines("GCELL/netype=NodeB/neid=1001.csv").size());
+        assertEquals(4, readLines("SUBSESSION_NE.csv").size());
+        assertFalse(new File(outputDirectory, "CELL.csv").exists());
+    }
+
+    public void testCheckpointedRunResumes() throws Exception {
+        File input = new File(workDirectory, "in");
+        input.mkdir();
+        for(int i = 1; i <= 3; i++){
+            NBIXMLScannerTest.generateNBIFile(new File(input, "nbi" + i + ".xml"), i, "");
+        }
+
+        HuaweiCMXMLParser parser = newParser(input);
+        parser.parse();
+        List<String> expected = readLines("CELL.csv");
+        String header = expected.get(0);
+
+        //A complete run gives the same output and removes its checkpoint
+        outputDirectory = new File(workDirectory, "checkpointed");
+        outputDirectory.mkdir();
+        parser = newParser(input);
+        parser.setCheckpoint(true);
+        parser.parse();
+        List<String> actual = readLines("CELL.csv");
+        assertEquals(expected.get(0), actual.get(0));
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+        assertFalse(new File(outputDirectory, Checkpoint.DIRECTORY).exists());
+
+        //A run stopped after committing nbi1.xml's output
+        outputDirectory = new File(workDirectory, "resumed");
+        outputDirectory.mkdir();
+        File nbi1 = new File(input, "nbi1.xml");
+        Checkpoint checkpoint = new Checkpoint(outputDirectory.getAbsolutePath());
+        String segment = checkpoint.beginSegment(nbi1);
+        Files.write(new File(segment, "CELL.csv").toPath(),
+                Arrays.asList(header, "committed-row"));
+        checkpoint.commitSegment(nbi1);
+
+        parser = newParser(input);
+        parser.setCheckpoint(true);
+        parser.parse();
+
+        List<String> resumed = readLines("CELL.csv");
+        assertEquals(header, resumed.get(0));
+        assertEquals("committed-row", resumed.get(1));
+        assertFalse(resumed.toString().contains("nbi1.xml,"));
+        assertTrue(resumed.toString().contains("nbi3.xml,"));
+    }
+
+    public void testResumedRunChecksTheSchemaFiles() throws Exception {
+        File input = new File(workDirectory, "in");
+        input.mkdir();
+        for(int i = 1; i <= 3; i++){
+            NBIXMLScannerTest.generateNBIFile(new File(input, "nbi" + i + ".xml"), i, "");
+        }
+        File[] files = input.listFiles();
+        Arrays.sort(files);
+        Map<String, Stack> columns = new LinkedHashMap<String, Stack>();
+        columns.put("CELL", stack("CELLID"));
+
+        //A run stopped after its parameter pass and nbi1.xml's output
+        Checkpoint checkpoint = new Checkpoint(outputDirectory.getAbsolutePath());
+        checkpoint.saveSchema(Arrays.asList(files), "2019-01-01T00:00:00+03:00", columns);
+        String segment = checkpoint.beginSegment(files[0]);
+        Files.write(new File(segment, "CELL.csv").toPath(), Arrays.asList("header", "committed-row"));
+        checkpoint.commitSegment(files[0]);
+
+        //The schema of unchanged files is used
+        HuaweiCMXMLParser parser = newParser(input);
+        parser.setCheckpoint(true);
+        parser.parse();
+        List<String> cells = readLines("CELL.csv");
+        assertTrue(cells.contains("committed-row"));
+        assertTrue(cells.toString().contains("nbi2.xml,"));
+        assertFalse(cells.toString().contains("Cell "));
+        assertFalse(new File(outputDirectory, "GCELL.csv").exists());
+
+        //nbi3.xml changes after the parameter pass
+        delete(outputDirectory);
+        outputDirectory.mkdir();
+        checkpoint = new Checkpoint(outputDirectory.getAbsolutePath());
+        checkpoint.saveSchema(Arrays.asList(files), "2019-01-01T00:00:00+03:00", columns);
+        segment = checkpoint.beginSegment(files[0]);
+        Files.write(new File(segment, "CELL.csv").toPath(), Arrays.asList("header", "committed-row"));
+        checkpoint.commitSegment(files[0]);
+        NBIXMLScannerTest.generateNBIFile(files[2], 4, "");
+        files[2].setLastModified(files[2].lastModified() + 2000);
+
+        parser = newParser(input);
+        parser.setCheckpoint(true);
+        parser.parse();
+        List<String> resumed = readLines("CELL.csv");
+
+        File fresh = new File(workDirectory, "fresh");
+        fresh.mkdir();
+        outputDirectory = fresh;
+        newParser(input).parse();
+        List<String> expected = readLines("CELL.csv");
+
+        //The parameter pass was run again and the segment written with the
+        //old schema parsed again
+        assertEquals(expected.get(0), resumed.get(0));
+        assertFalse(resumed.contains("committed-row"));
+        Collections.sort(expected);
+        Collections.sort(resumed);
+        assertEquals(expected, resumed);
+    }
+
+    public void testNEFilterSkipsNEs() throws Exception {
+        File input = new File(workDirectory, "nbi.xml");
+        NBIXMLScannerTest.generateNBIFile(input, 4, "");
+        //Bytes of the first NE
+        String xml = new String(Files.readAllBytes(input.toPath()), "UTF-8");
+        int firstNE = xml.indexOf("<NE ");
+        String ne = xml.substring(firstNE, xml.indexOf("</NE>", firstNE) + "</NE>".length());
+        long neBytes = ne.getBytes("UTF-8").length;
+
+        for(boolean useByteScanner : new boolean[]{false, true}){
+            NEFilter filter = new NEFilter();
+            filter.add("netype=NodeB,RNC");
+            filter.add("neversion=V100R*");
+
+            HuaweiCMXMLParser parser = newParser(input);
+            parser.setUseByteScanner(useByteScanner);
+            parser.setNEFilter(filter);
+            parser.parse();
+
+            //Only NEs 1001 and 1003 are NodeBs
+            List<String> nes = readLines("SUBSESSION_NE.csv");
+            assertEquals(3, nes.size());
+            assertTrue(nes.get(1).contains(",NodeB,V100R011,1001,"));
+            assertEquals(6, countRows("CELL.csv"));
+            assertFalse(readLines("CELL.csv").toString().contains("BTS3900"));
+            assertEquals(2, parser.getSkippedNEs());
+            if(useByteScanner){
+                assertEquals(2 * neBytes, parser.getSkippedNEBytes());
+            }
+        }
+    }
+
+    public void testCMStoreQueriesAndSnapshot() throws Exception {
+        File input = new File(workDirectory, "nbi.xml");
+        NBIXMLScannerTest.generateNBIFile(input, 4, "");
+
+        HuaweiCMXMLParser parser = newParser(input);
+        parser.setUseByteScanner(true);
+        parser.setCMStoreEnabled(true);
+        parser.parse();
+
+        File snapshot = new File(workDirectory, "cm.store");
+        parser.getCMStore().save(snapshot);
+
+        for(CMStore store : new CMStore[]{parser.getCMStore(), CMStore.load(snapshot)}){
+            assertTrue(store.getMOs().contains("CELL"));
+            assertEquals(12, store.getRowCount("CELL"));
+            assertEquals(Arrays.asList("1000", "1001", "1002", "1003"), store.getNEIds("CELL"));
+            assertEquals(Arrays.asList("0", "1", "2"), store.getValues("1001", "CELL", "CELLID"));
+            assertEquals(1, store.getRows("1002", "GCELL").size());
+            assertTrue(store.getValues("9999", "CELL", "CELLID").isEmpty());
+            assertTrue(store.getValues("1001", "CELL", "UNKNOWN").isEmpty());
+        }
+
+        //Values are kept as parsed, not csv formatted
+        Map<String, String> cell = parser.getCMStore().getRows("1000", "CELL").get(1);
+        assertEquals("Cell \"1\", \u00e9t\u00e9", cell.get("CELLNAME"));
+        assertEquals("", cell.get("EMPTY"));
+        assertEquals("", parser.getCMStore().getRows("1000", "CELL").get(0).get("EMPTY"));
+
+        //Rows loaded from checkpoints or written by workers are not stored
+        try{
+            parser.setWorkers(2);
+            fail();
+        }catch(IllegalArgumentException e){
+        }
+        try{
+            parser.setCheckpoint(true);
+            fail();
+        }catch(IllegalArgumentException e){
+        }
+        parser = newParser(input);
+        parser.setCheckpoint(true);
+        try{
+            parser.setCMStoreEnabled(true);
+            fail();
+        }catch(IllegalArgumentException e){
+        }
+    }
+
+    public void testWorkerProcessesMatchSerialParsing() throws Exception {
+        File input = new File(workDirectory, "in");
+        input.mkdir();
+        for(int i = 1; i <= 5; i++){
+            NBIXMLScannerTest.generateNBIFile(new File(input, "nbi" + i + ".xml"), i, "");
+        }
+
+        HuaweiCMXMLParser parser = newParser(input);
+        parser.parse();
+        File serial = new File(workDirectory, "serial");
+        outputDirectory.renameTo(serial);
+
+        outputDirectory = new File(workDirectory, "workers");
+        outputDirectory.mkdir();
+        parser = newParser(input);
+        parser.setUseByteScanner(true);
+        parser.setMaxShardRows(4);
+        parser.setWorkers(2);
+        parser.parse();
+
+        //Shards are renumbered in file order
+        List<String> manifest = readLines("manifest.csv");
+        assertTrue(manifest.contains("CELL,1,CELL_00001.csv,3,"
+                + new File(outputDirectory, "CELL_00001.csv").length()));
+        List<String> expected = Files.readAllLines(new File(serial, "CELL.csv").toPath());
+        List<String> actual = new ArrayList<String>();
+        for(int shard = 1; new File(outputDirectory, MOCsvWriter.shardFileName("CELL", shard)).exists(); shard++){
+            List<String> lines = readLines(MOCsvWriter.shardFileName("CELL", shard));
+            assertEquals(expected.get(0), lines.get(0));
+            actual.addAll(lines.subList(1, lines.size()));
+        }
+        expected = expected.subList(1, expected.size());
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+        assertTrue(new File(outputDirectory, "filefooter.csv").exists());
+        assertFalse(new File(outputDirectory, Checkpoint.DIRECTORY).exists());
+    }
+
+    public void testSplitFilesBetweenWorkers() throws Exception {
+        List<File> files = new ArrayList<File>();
+        for(int i = 0; i < 6; i++){
+            File f = new File(workDirectory, "f" + i);
+            Files.write(f.toPath(), new byte[10]);
+            files.add(f);
+        }
+
+        List<List<File>> ranges = WorkerCoordinator.split(files, 3);
+        assertEquals(files.subList(0, 2), ranges.get(0));
+        assertEquals(files.subList(2, 4), ranges.get(1));
+        assertEquals(files.subList(4, 6), ranges.get(2));
+
+        //A large file gets a range of its own and no range is left empty
+        Files.write(files.get(0).toPath(), new byte[100]);
+        ranges = WorkerCoordinator.split(files, 3);
+        assertEquals(files.subList(0, 1), ranges.get(0));
+        assertFalse(ranges.get(1).isEmpty());
+        assertFalse(ranges.get(2).isEmpty());
+        assertEquals(5, ranges.get(1).size() + ranges.get(2).size());
+    }
+
+    public void testExtractNEWithIndex() throws Exception {
+        File input = new File(workDirectory, "nbi.xml");
+        NBIXMLScannerTest.generateNBIFile(input, 4, "");
+        String indexDirectory = new File(workDirectory, "index").getAbsolutePath();
+
+        HuaweiCMXMLParser parser = newParser(input);
+        parser.setUseByteScanner(true);
+        parser.setNEIndexDirectory(indexDirectory);
+        parser.parse();
+
+        List<String> index = Files.readAllLines(NEIndex.indexFile(indexDirectory, input).toPath());
+        assertEquals(6, index.size());
+        assertTrue(index.get(4).startsWith("1002,"));
+        assertTrue(index.get(4).endsWith(",CELL:3 GCELL:1"));
+
+        //Without a parameter extraction pass the file is checked before
+        //its values are scanned
+        File parameterFile = new File(workDirectory, "parameters.txt");
+        Files.write(parameterFile.toPath(), Arrays.asList("CELL:CELLID"));
+        String configuredIndexDirectory = new File(workDirectory, "configured").getAbsolutePath();
+        parser = newParser(input);
+        parser.setUseByteScanner(true);
+        parser.setNEIndexDirectory(configuredIndexDirectory);
+        parser.setParameterFile(parameterFile.getAbsolutePath());
+        parser.getParametersToExtract(parameterFile.getAbsolutePath());
+        parser.parse();
+        assertEquals(index, Files.readAllLines(NEIndex.indexFile(configuredIndexDirectory, input).toPath()));
+
+        outputDirectory = new File(workDirectory, "extracted");
+        outputDirectory.mkdir();
+        parser = newParser(input);
+        parser.setNEIndexDirectory(indexDirectory);
+        parser.extractNE(input.getAbsolutePath(), "1002", "CELL");
+
+        //Only the columns of the NE are found
+        List<String> cells = readLines("CELL.csv");
+        assertFalse(cells.get(0).contains("LATE"));
+        assertEquals(3, countRows("CELL.csv"));
+        assertFalse(cells.toString().contains(",1001,"));
+        assertTrue(cells.get(1).startsWith("nbi.xml,2019-01-01T00:00:00+03:00,SRAN,BTS3900,V100R012,1002,"));
+        assertEquals(2, readLines("SUBSESSION_NE.csv").size());
+        assertFalse(new File(outputDirectory, "GCELL.csv").exists());
+
+        //The index is not used once the file changes
+        input.setLastModified(input.lastModified() + 2000);
+        try{
+            parser = newParser(input);
+            parser.setNEIndexDirectory(indexDirectory);
+            parser.extractNE(input.getAbsolutePath(), "1002", null);
+            fail();
+        }catch(javax.xml.stream.XMLStreamException e){
+            assertTrue(e.getMessage().contains("out of date"));
+        }
+
+        //neids can contain commas
+        NEIndex commas = new NEIndex();
+        commas.startNE("1,2", 10);
+        commas.addMO("CELL");
+        commas.endNE(20);
+        commas.startNE("3", 20);
+        commas.endNE(30);
+        commas.save(input, indexDirectory, null);
+        NEIndex loaded = NEIndex.load(input, indexDirectory);
+        NEIndex.Entry entry = loaded.find("1,2").get(0);
+        assertEquals(10, entry.start);
+        assertEquals(20, entry.end);
+        assertEquals(Integer.valueOf(1), entry.moCounts.get("CELL"));
+        assertTrue(loaded.find("3").get(0).moCounts.isEmpty());
+    }
+
+    public void testDeduplicateRowsAcrossFiles() throws Exception {
+        File input = new File(workDirectory, "in");
+        input.mkdir();
+        //NEs 1000 and 1001 are in both files, 1002 only in nbi3.xml
+        NBIXMLScannerTest.generateNBIFile(new File(input, "nbi2.xml"), 2, "");
+        NBIXMLScannerTest.generateNBIFile(new File(input, "nbi3.xml"), 3, "");
+
+        HuaweiCMXMLParser parser = newParser(input);
+        parser.setDeduplicate(true);
+        parser.setFileScheduler(FileScheduler.PLATFORM, 2, 2);
+        parser.parse();
+
+        assertEquals(4, readLines("SUBSESSION_NE.csv").size());
+        assertEquals(4, readLines("GCELL.csv").size());
+        //2 NEs with 3 CELLs and 1 GCELL and their NE rows
+        assertEquals(2 * 5, parser.getDuplicateRows());
+
+        //Fingerprints are not kept across runs or processes
+        try{
+            parser.setCheckpoint(true);
+            fail();
+        }catch(IllegalArgumentException e){
+        }
+        parser = newParser(input);
+        parser.setWorkers(2);
+        try{
+            parser.setDeduplicate(true);
+            fail();
+        }catch(IllegalArgumentException e){
+        }
+
+        //Enough rows to grow the table
+        RowFingerprints fingerprints = new RowFingerprints();
+        for(int i = 0; i < 100000; i++){
+            assertTrue(fingerprints.add("CELL", "1000," + i));
+        }
+        assertTrue(fingerprints.add("GCELL", "1000,0"));
+        assertFalse(fingerprints.add("CELL", "1000,99999"));
+        assertEquals(1, fingerprints.getDuplicateCount());
+    }
+
+    public void testExpandSwitches() throws Exception {
+        File input = new File(workDirectory, "nbi.xml");
+        NBIXMLScannerTest.generateNBIFile(input, 2, "");
+
+        for(boolean useByteScanner : new boolean[]{false, true}){
+            HuaweiCMXMLParser parser = newParser(input);
+            parser.setUseByteScanner(useByteScanner);
+            parser.setExpandSwitches(true);
+            parser.parse();
+
+            List<String> cells = readLines("CELL.csv");
+            assertTrue(cells.get(0).contains(",SW,SW_A,SW_B,"));
+            assertTrue(cells.get(1).contains(",A-1&B-0,1,0,"));
+            //Not compound switches
+            assertFalse(cells.get(0).contains("CELLNAME_"));
+            assertFalse(cells.get(0).contains("DESC_"));
+        }
+
+        SwitchExpander expander = new SwitchExpander();
+        String[] switches = expander.expand("SW", "A_1-1&B2-10");
+        assertEquals(Arrays.asList("SW_A_1", "1", "SW_B2", "10"), Arrays.asList(switches));
+        assertSame(switches, expander.expand("SW", "A_1-1&B2-10"));
+        assertNull(expander.expand("SW", "2019-01"));
+        //Hyphenated names are not single switches
+        assertNull(expander.expand("CELLNAME", "Lagos-1"));
+        assertNull(expander.expand("CELLNAME", "Abuja-2"));
+        assertNull(expander.expand("SW", "A-1"));
+        assertNull(expander.expand("SW", "A-1&"));
+        assertNull(expander.expand("SW", ""));
+    }
+
+    public void testStreamStandardInputToOutputStream() throws Exception {
+        File input = new File(workDirectory, "nbi.xml");
+        NBIXMLScannerTest.generateNBIFile(input, 2, "");
+
+        java.io.InputStream stdin = System.in;
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        try{
+            System.setIn(new java.io.FileInputStream(input));
+            HuaweiCMXMLParser parser = new HuaweiCMXMLParser();
+            parser.setDataSource(HuaweiCMXMLParser.STANDARD_STREAM);
+            parser.setOutputStream(out);
+            parser.setPrintProgress(false);
+            parser.setCMStoreEnabled(true);
+            parser.parse();
+            assertEquals(6, parser.getCMStore().getRowCount("CELL"));
+        }finally{
+            System.setIn(stdin);
+        }
+
+        List<String> lines = Arrays.asList(out.toString().split("\r?\n"));
+        List<String> cellHeaders = new ArrayList<String>();
+        for(String line : lines){
+            if(line.startsWith("#CELL,")) cellHeaders.add(line);
+        }
+        //EMPTY and BLANK are first seen in the second CELL, LATE in NE 1001
+        assertEquals(3, cellHeaders.size());
+        assertTrue(cellHeaders.get(0).endsWith(",CELLID,CELLNAME,SW,DESC"));
+        assertTrue(cellHeaders.get(2).endsWith(",CELLID,CELLNAME,SW,DESC,EMPTY,BLANK,LATE"));
+        assertTrue(lines.get(0).startsWith("#CELL,FileName,varDateTime,"));
+        assertTrue(lines.get(1).startsWith("CELL,stdin,,SRAN,BTS3900,V100R010,1000,"));
+        assertTrue(lines.contains("#SUBSESSION_NE,FileName,varDateTime,ne_xsitype,netype,neversion,"
+                + "neid,module_type,module_remark, module_productversion"));
+        assertEquals("filefooter,stdin,2019-01-01T00:00:00+03:00", lines.get(lines.size() - 1));
+
+        //Files are parsed in two passes with one header per managed object
+        out = new java.io.ByteArrayOutputStream();
+        HuaweiCMXMLParser parser = newParser(input);
+        parser.setOutputStream(out);
+        parser.setPrintProgress(false);
+        parser.parse();
+        lines = Arrays.asList(out.toString().split("\r?\n"));
+        //The footer is read in the parameter extraction pass
+        assertEquals("filefooter,nbi.xml,2019-01-01T00:00:00+03:00", lines.get(1));
+        assertEquals(cellHeaders.get(2), lines.get(2));
+        assertEquals(1, Collections.frequency(lines, lines.get(2)));
+        assertTrue(lines.get(3).startsWith("CELL,nbi.xml,2019-01-01T00:00:00+03:00,SRAN,BTS3900,"
+                + "V100R010,1000,WCDMA,r x,p&v,0,"));
+
+        //Messages about files that cannot be parsed are not written to the stream
+        File directory = new File(workDirectory, "in");
+        directory.mkdir();
+        NBIXMLScannerTest.generateNBIFile(new File(directory, "nbi.xml"), 2, "");
+        Files.write(new File(directory, "zz.xml").toPath(), Arrays.asList("<bulkCmConfigDataFile><NE>"));
+        java.io.PrintStream stderr = System.err;
+        java.io.ByteArrayOutputStream err = new java.io.ByteArrayOutputStream();
+        out = new java.io.ByteArrayOutputStream();
+        try{
+            System.setErr(new java.io.PrintStream(err, true));
+            parser = newParser(directory);
+            parser.setOutputStream(out);
+            parser.parse();
+        }finally{
+            System.setErr(stderr);
+        }
+        assertFalse(out.toString().contains("zz.xml"));
+        assertTrue(err.toString().contains("Skipping file: zz.xml"));
+        assertTrue(out.toString().contains("CELL,nbi.xml,"));
+    }
+
+    private static void delete(File f){
+        File[] children = f.listFiles();
+        if(children != null){
+            for(File c : children){
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
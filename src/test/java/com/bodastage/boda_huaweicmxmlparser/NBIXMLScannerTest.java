@@ -0,0 +1,147 @@
+package com.bodastage.boda_huaweicmxmlparser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Compares the output of the byte scanner with the StAX engine.
+ */
+public class NBIXMLScannerTest extends TestCase {
+
+    private File workDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        workDirectory = Files.createTempDirectory("nbiscanner").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(workDirectory);
+    }
+
+    /**
+     * Generate an NBI file using the XML features found in real dumps.
+     */
+    static void generateNBIFile(File file, int neCount, String extra) throws IOException {
+        PrintWriter pw = new PrintWriter(file, "UTF-8");
+        pw.print("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n");
+        pw.print("<bulkCmConfigDataFile xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\r\n");
+        pw.print("<!-- generated -->\r\n");
+        for(int n = 0; n < neCount; n++){
+            pw.print("<NE xsi:type=\"SRAN\" netype=\"" + (n % 2 == 0 ? "BTS3900" : "NodeB")
+                    + "\" neversion=\"V100R01" + n + "\" neid=\"" + (1000 + n) + "\">\r\n");
+            pw.print("  <module xsi:type=\"WCDMA\" productversion=\"p&amp;v\" remark='r\tx'>\r\n");
+            for(int m = 0; m < 3; m++){
+                pw.print("    <moi xsi:type=\"CELL\">\r\n      <attributes>\r\n");
+                pw.print("        <CELLID>" + m + "</CELLID>\r\n");
+                pw.print("        <CELLNAME>Cell &quot;" + m + "&quot;, &#xE9;t&#233;</CELLNAME>\r\n");
+                pw.print("        <SW>A-1&amp;B-0</SW>\r\n");
+                if(m == 1){
+                    pw.print("        <EMPTY/>\r\n        <BLANK>  </BLANK>\r\n");
+                }
+                if(n == 1){
+                    pw.print("        <LATE>x&lt;y&gt;z</LATE>\r\n");
+                }
+                pw.print("        <DESC>line1\r\nline2 \u00fc" + extra + "</DESC>\r\n");
+                pw.print("      </attributes>\r\n    </moi>\r\n");
+            }
+            pw.print("    <moi xsi:type=\"GCELL\"><attributes><CI>" + n
+                    + "</CI></attributes></moi>\r\n");
+            pw.print("  </module>\r\n</NE>\r\n");
+        }
+        pw.print("<filefooter datetime=\"2019-01-01T00:00:00+03:00\"/>\r\n");
+        pw.print("</bulkCmConfigDataFile>\r\n");
+        pw.close();
+    }
+
+    private File parse(File input, boolean useByteScanner, String name) throws Exception {
+        File output = new File(workDirectory, name);
+        output.mkdir();
+
+        HuaweiCMXMLParser parser = new HuaweiCMXMLParser();
+        parser.setUseByteScanner(useByteScanner);
+        parser.setDataSource(input.getAbsolutePath());
+        parser.setOutputDirectory(output.getAbsolutePath());
+        parser.parse();
+        return output;
+    }
+
+    private void assertSameOutput(File expected, File actual) throws IOException {
+        String[] expectedFiles = expected.list();
+        String[] actualFiles = actual.list();
+        Arrays.sort(expectedFiles);
+        Arrays.sort(actualFiles);
+        assertTrue(Arrays.equals(expectedFiles, actualFiles));
+
+        for(String f : expectedFiles){
+            byte[] e = Files.readAllBytes(new File(expected, f).toPath());
+            byte[] a = Files.readAllBytes(new File(actual, f).toPath());
+            assertTrue("Output differs for " + f, Arrays.equals(e, a));
+        }
+    }
+
+    public void testScannerMatchesStAX() throws Exception {
+        File input = new File(workDirectory, "nbi.xml");
+        generateNBIFile(input, 4, "");
+
+        File stax = parse(input, false, "stax");
+        File scanner = parse(input, true, "scanner");
+
+        assertSameOutput(stax, scanner);
+
+        String cells = new String(Files.readAllBytes(new File(stax, "CELL.csv").toPath()), "UTF-8");
+        assertTrue(cells.contains(",A-1&B-0,"));
+        assertTrue(cells.contains("\"Cell \"\"1\"\", "));
+    }
+
+    public void testFallbackToStAX() throws Exception {
+        File input = new File(workDirectory, "nbi.xml");
+        generateNBIFile(input, 2, "<![CDATA[<cdata>]]>");
+
+        File stax = parse(input, false, "stax");
+        File scanner = parse(input, true, "scanner");
+
+        assertSameOutput(stax, scanner);
+    }
+
+    public void testFallbackInLaterNE() throws Exception {
+        File input = new File(workDirectory, "nbi.xml");
+        PrintWriter pw = new PrintWriter(input, "UTF-8");
+        pw.print("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        pw.print("<bulkCmConfigDataFile xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n");
+        pw.print("<NE xsi:type=\"SRAN\" netype=\"BTS3900\" neversion=\"V1\" neid=\"1\">\n");
+        pw.print("  <module xsi:type=\"WCDMA\" productversion=\"p\" remark=\"r\">\n");
+        pw.print("    <moi xsi:type=\"CELL\"><attributes><A>1</A><B>2</B></attributes></moi>\n");
+        pw.print("  </module>\n</NE>\n");
+        pw.print("<NE xsi:type=\"SRAN\" netype=\"NodeB\" neversion=\"V2\" neid=\"2\">\n");
+        pw.print("  <module xsi:type=\"GSM\" productversion=\"q\" remark=\"s\">\n");
+        pw.print("    <moi xsi:type=\"GCELL\"><attributes><X>3</X>"
+                + "<CI><![CDATA[4]]></CI></attributes></moi>\n");
+        pw.print("  </module>\n</NE>\n");
+        pw.print("<filefooter datetime=\"2019-01-01T00:00:00+03:00\"/>\n");
+        pw.print("</bulkCmConfigDataFile>\n");
+        pw.close();
+
+        File stax = parse(input, false, "stax");
+        File scanner = parse(input, true, "scanner");
+
+        assertSameOutput(stax, scanner);
+        String cells = new String(Files.readAllBytes(new File(scanner, "CELL.csv").toPath()), "UTF-8");
+        assertFalse(cells.contains(",X"));
+    }
+
+    private static void delete(File f){
+        File[] children = f.listFiles();
+        if(children != null){
+            for(File c : children){
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}